@@ -16,12 +16,9 @@
 
 package com.google.android.chrometophone.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Map;
@@ -43,6 +40,8 @@ public class C2DMessaging {
 
     private static final String UTF8 = "UTF-8";
 
+    private static final String C2DM_SEND_URL = "https://android.apis.google.com/c2dm/send";
+
     /**
      * Jitter - random interval to wait before retry.
      */
@@ -84,11 +83,9 @@ public class C2DMessaging {
         byte[] postData = postDataBuilder.toString().getBytes(UTF8);
 
         // Hit the dm URL.
-        URL url = new URL("https://android.apis.google.com/c2dm/send");
-        
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        HttpTransport transport = HttpTransport.get();
+        HttpURLConnection conn = transport.open(C2DM_SEND_URL);
         conn.setDoOutput(true);
-        conn.setUseCaches(false);
         conn.setRequestMethod("POST");
         conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded;charset=UTF-8");
         conn.setRequestProperty("Content-Length", Integer.toString(postData.length));
@@ -112,9 +109,8 @@ public class C2DMessaging {
             // is updating the token, or Update-Client-Auth was received by another server,
             // and next retry will get the good one from database.
             log.warning("Unauthorized - need token");
-            C2PConfig cfg = storage.getConfig();
-            cfg.setLegacyClientLogin(null);
-            storage.saveConfig(cfg);
+            transport.discard(conn);
+            storage.getConfigHolder().updateLegacyClientLogin(null);
             return true; // Ignore legacy if failing
         }
 
@@ -123,13 +119,15 @@ public class C2DMessaging {
         if (updatedAuthToken != null && !authToken.equals(updatedAuthToken)) {
             log.info("Got updated auth token from datamessaging servers: " +
                     updatedAuthToken);
-            C2PConfig cfg = storage.getConfig();
-            cfg.setLegacyClientLogin(updatedAuthToken);
-            storage.saveConfig(cfg);
+            storage.getConfigHolder().updateLegacyClientLogin(updatedAuthToken);
         }
 
-        String responseLine = new BufferedReader(new InputStreamReader(conn.getInputStream()))
-            .readLine();
+        // Read the whole body - the connection can then be reused.
+        String responseLine = transport.readBody(conn);
+        int eol = responseLine.indexOf('\n');
+        if (eol >= 0) {
+            responseLine = responseLine.substring(0, eol).trim();
+        }
 
         // NOTE: You *MUST* use exponential backoff if you receive a 503 response code.
         // Since App Engine's task queue mechanism automatically does this for tasks that
@@ -53,6 +53,39 @@ public final class C2PConfig {
     @Persistent
     private String c2dmUrl;
 
+    /**
+     * Re-registrations that change nothing only update the stored
+     * timestamp if it is older than this. Default 1 hour.
+     */
+    @Persistent
+    private Long registrationRefreshSeconds;
+
+    static final long DEFAULT_REGISTRATION_REFRESH_SECONDS = 3600;
+
+    /**
+     * Sends per minute allowed for each user, and the burst above that
+     * rate - see RateLimiter. 0 disables the limit.
+     */
+    @Persistent
+    private Long userSendsPerMinute;
+
+    @Persistent
+    private Long userSendBurst;
+
+    /**
+     * Same for each client IP - higher, since users can share an IP.
+     */
+    @Persistent
+    private Long ipSendsPerMinute;
+
+    @Persistent
+    private Long ipSendBurst;
+
+    static final long DEFAULT_USER_SENDS_PER_MINUTE = 30;
+    static final long DEFAULT_USER_SEND_BURST = 20;
+    static final long DEFAULT_IP_SENDS_PER_MINUTE = 120;
+    static final long DEFAULT_IP_SEND_BURST = 60;
+
     public String getAuthToken() {
         return (authToken == null) ? "" : authToken;
     }
@@ -71,4 +104,54 @@ public final class C2PConfig {
     public String getLegacyClientLogin() { return legacyClientLogin;}
 
     public void setLegacyClientLogin(String token) {legacyClientLogin = token;}
-}
\ No newline at end of file
+
+    String getC2dmUrl() {
+        return c2dmUrl;
+    }
+
+    void setC2dmUrl(String c2dmUrl) {
+        this.c2dmUrl = c2dmUrl;
+    }
+
+    public long getRegistrationRefreshSeconds() {
+        return registrationRefreshSeconds != null ?
+                registrationRefreshSeconds : DEFAULT_REGISTRATION_REFRESH_SECONDS;
+    }
+
+    public void setRegistrationRefreshSeconds(Long seconds) {
+        registrationRefreshSeconds = seconds;
+    }
+
+    public long getUserSendsPerMinute() {
+        return userSendsPerMinute != null ?
+                userSendsPerMinute : DEFAULT_USER_SENDS_PER_MINUTE;
+    }
+
+    public void setUserSendsPerMinute(Long sends) {
+        userSendsPerMinute = sends;
+    }
+
+    public long getUserSendBurst() {
+        return userSendBurst != null ? userSendBurst : DEFAULT_USER_SEND_BURST;
+    }
+
+    public void setUserSendBurst(Long burst) {
+        userSendBurst = burst;
+    }
+
+    public long getIpSendsPerMinute() {
+        return ipSendsPerMinute != null ? ipSendsPerMinute : DEFAULT_IP_SENDS_PER_MINUTE;
+    }
+
+    public void setIpSendsPerMinute(Long sends) {
+        ipSendsPerMinute = sends;
+    }
+
+    public long getIpSendBurst() {
+        return ipSendBurst != null ? ipSendBurst : DEFAULT_IP_SEND_BURST;
+    }
+
+    public void setIpSendBurst(Long burst) {
+        ipSendBurst = burst;
+    }
+}
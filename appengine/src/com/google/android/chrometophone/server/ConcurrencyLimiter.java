@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the requests in flight, with a limit adapted to the latency
+ * (AIMD): it grows by about one per round trip while requests are as fast
+ * as without load, and is cut by 10% when they get slower than twice that,
+ * or fail. Requests over the limit are rejected right away, instead of
+ * waiting for a slow GCM or datastore until they time out.
+ *
+ * Only requests that did the protected work are sampled: rejected,
+ * unauthenticated or invalid requests and cache hits are fast whatever
+ * the load, and would drag the no-load latency down until every real
+ * request looks like overload.
+ *
+ * The no-load latency is the fastest request of the previous 5s window.
+ * It can go up at most 2x per window - under sustained overload even the
+ * fastest requests are slow - so it takes a few windows to follow a
+ * backend that got slower, without hiding overload.
+ *
+ * Exposes NAME_in_flight and NAME_concurrency_limit gauges, and a
+ * NAME_rejected counter.
+ */
+public class ConcurrencyLimiter {
+    static final int INITIAL_LIMIT = 32;
+    static final int MIN_LIMIT = 4;
+    static final int MAX_LIMIT = 256;
+
+    static final long WINDOW_NANOS = 5 * 1000000000L;
+    static final double MAX_NO_LOAD_INCREASE = 2.0;
+
+    /**
+     * Latency above TOLERANCE x no-load latency + SLACK is overload.
+     */
+    static final double TOLERANCE = 2.0;
+    static final long SLACK_NANOS = 10 * 1000000L;
+
+    static final double BACKOFF = 0.9;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Metrics.Counter rejected;
+
+    // Written with the lock held.
+    private volatile double limit;
+
+    private long noLoadNanos;
+    private long windowMinNanos = Long.MAX_VALUE;
+    private long windowStartNanos;
+    private long lastDecreaseNanos;
+
+    public ConcurrencyLimiter(String name) {
+        this(name, INITIAL_LIMIT);
+    }
+
+    ConcurrencyLimiter(String name, int initialLimit) {
+        limit = initialLimit;
+        lastDecreaseNanos = System.nanoTime();
+        windowStartNanos = lastDecreaseNanos;
+        Metrics metrics = Metrics.get();
+        rejected = metrics.counter(name + "_rejected");
+        metrics.gauge(name + "_in_flight", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return inFlight.get();
+            }
+        });
+        metrics.gauge(name + "_concurrency_limit", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return (long) limit;
+            }
+        });
+    }
+
+    /**
+     * @return the start time to pass to release(), or -1 if the request
+     *     must be rejected.
+     */
+    public long acquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.inc();
+                return -1;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * End of a request started with acquire().
+     *
+     * @param failed true if the request failed - counted as overload.
+     * @param sample false if the request ended before the protected work,
+     *     its latency says nothing about the load.
+     */
+    public void release(long startNanos, boolean failed, boolean sample) {
+        long now = System.nanoTime();
+        int current = inFlight.getAndDecrement();
+        if (failed || sample) {
+            update(startNanos, now - startNanos, current, failed, now);
+        }
+    }
+
+    private synchronized void update(long startNanos, long latency, int inFlight,
+                                     boolean failed, long now) {
+        if (!failed) {
+            windowMinNanos = Math.min(windowMinNanos, latency);
+            if (noLoadNanos == 0) {
+                noLoadNanos = latency;
+            }
+            if (now - windowStartNanos >= WINDOW_NANOS) {
+                noLoadNanos = Math.min(windowMinNanos,
+                        (long) (noLoadNanos * MAX_NO_LOAD_INCREASE));
+                windowMinNanos = Long.MAX_VALUE;
+                windowStartNanos = now;
+            }
+        }
+        if (failed || latency > noLoadNanos * TOLERANCE + SLACK_NANOS) {
+            // Once per round: requests started before the last decrease
+            // were already counted.
+            if (startNanos > lastDecreaseNanos) {
+                limit = Math.max(MIN_LIMIT, limit * BACKOFF);
+                lastDecreaseNanos = now;
+            }
+        } else if (inFlight * 2 >= limit) {
+            // Only grow when the limit is used.
+            limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.android.gcm.server.Sender;
+
+import java.util.logging.Logger;
+
+/**
+ * Cached server config, and the GCM Sender built from it.
+ *
+ * The config is read from storage at most once per TTL. The version is
+ * incremented each time the cached config changes, so callers can detect
+ * updates. Changes made on this instance are written through.
+ */
+public class ConfigHolder {
+    private static final Logger log = Logger.getLogger(ConfigHolder.class.getName());
+
+    static final long DEFAULT_TTL_MS = 60 * 1000;
+
+    private final Storage storage;
+    private final long ttlMs;
+
+    private C2PConfig config;
+    private long loadedAt;
+    private long version;
+
+    private Sender sender;
+    private String senderToken;
+
+    public ConfigHolder(Storage storage, long ttlMs) {
+        this.storage = storage;
+        this.ttlMs = ttlMs;
+    }
+
+    public synchronized C2PConfig get() {
+        long now = System.currentTimeMillis();
+        if (config == null || now - loadedAt > ttlMs) {
+            C2PConfig loaded = storage.loadConfig();
+            if (config == null || changed(config, loaded)) {
+                version++;
+            }
+            config = loaded;
+            loadedAt = now;
+        }
+        return config;
+    }
+
+    public synchronized long getVersion() {
+        get();
+        return version;
+    }
+
+    /**
+     * Sender for the current GCM key - only rebuilt when the key changes.
+     */
+    public synchronized Sender getSender() {
+        String token = get().getAuthToken();
+        if (sender == null || !token.equals(senderToken)) {
+            if (sender != null) {
+                log.info("GCM key changed, new Sender");
+            }
+            sender = new PooledSender(token, HttpTransport.get());
+            senderToken = token;
+        }
+        return sender;
+    }
+
+    /**
+     * Save a new ClientLogin token, or null if it is no longer valid.
+     * Updates the cached config - no need to read it again.
+     */
+    public synchronized void updateLegacyClientLogin(String token) {
+        C2PConfig cfg = get();
+        cfg.setLegacyClientLogin(token);
+        storage.saveConfig(cfg);
+        version++;
+    }
+
+    private static boolean changed(C2PConfig a, C2PConfig b) {
+        return !a.getAuthToken().equals(b.getAuthToken()) ||
+                !equal(a.getLegacyClientLogin(), b.getLegacyClientLogin());
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.ReadPolicy;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * App Engine datastore backend, using the datastore API and EntityMapper
+ * instead of JDO - no PersistenceManagerFactory to start, and one batch
+ * call where JDO loads objects one by one. Reads and writes the same
+ * entities as JdoStorageBackend.
+ *
+ * Devices and their RegistrationIndex entries are written in cross-group
+ * transactions, so the index always matches the devices.
+ */
+public class DatastoreStorageBackend implements StorageBackend {
+    private static final Logger log =
+            Logger.getLogger(DatastoreStorageBackend.class.getName());
+
+    /**
+     * Devices per delete transaction - each also has an index entry, and a
+     * transaction can use 25 entity groups.
+     */
+    static final int DELETE_BATCH_SIZE = 12;
+
+    // Same settings as jdoconfig.xml
+    private static final double READ_DEADLINE_SECONDS = 5;
+    private static final double WRITE_DEADLINE_SECONDS = 10;
+
+    private final DatastoreService reads;
+    private final DatastoreService writes;
+
+    public DatastoreStorageBackend() {
+        this.reads = DatastoreServiceFactory.getDatastoreService(
+                DatastoreServiceConfig.Builder
+                        .withReadPolicy(new ReadPolicy(ReadPolicy.Consistency.EVENTUAL))
+                        .deadline(READ_DEADLINE_SECONDS));
+        this.writes = DatastoreServiceFactory.getDatastoreService(
+                DatastoreServiceConfig.Builder.withDeadline(WRITE_DEADLINE_SECONDS));
+    }
+
+    @Override
+    public C2PConfig loadConfig() {
+        try {
+            return EntityMapper.toConfig(reads.get(EntityMapper.configKey()));
+        } catch (EntityNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void saveConfig(C2PConfig cfg) {
+        writes.put(EntityMapper.toEntity(cfg));
+    }
+
+    @Override
+    public List<DeviceInfo> loadDevices(String userName) {
+        List<DeviceInfo> devices = null;
+        try {
+            devices = queryDevices(userName);
+            // cleanup for multi-device
+            if (devices.size() > 1) {
+                // Make sure there is no 'bare' registration
+                // Keys are sorted - check the first
+                DeviceInfo first = devices.get(0);
+                Key oldKey = first.getKey();
+                if (oldKey.getName().indexOf('#') < 0) {
+                    log.warning("Removing old-style key " + oldKey.toString());
+                    // multiple devices, first is old-style.
+                    devices.remove(0);
+                    deleteDevices(Collections.singletonList(first));
+                }
+            }
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Error loading registrations ", e);
+        }
+        return devices;
+    }
+
+    /**
+     * All registrations of a user - the device keys between 'user' and
+     * 'user$'.
+     */
+    private List<DeviceInfo> queryDevices(String userName) {
+        Query query = new Query(EntityMapper.DEVICE_KIND).setFilter(
+                CompositeFilterOperator.and(
+                        new FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
+                                FilterOperator.GREATER_THAN_OR_EQUAL,
+                                EntityMapper.deviceKey(userName)),
+                        new FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
+                                FilterOperator.LESS_THAN,
+                                EntityMapper.deviceKey(userName + "$"))));
+        List<DeviceInfo> result = new ArrayList<DeviceInfo>();
+        for (Entity entity : reads.prepare(query).asIterable(FetchOptions.Builder.withDefaults())) {
+            result.add(EntityMapper.toDeviceInfo(entity));
+        }
+        return result;
+    }
+
+    @Override
+    public DeviceInfo saveDevice(DeviceInfo update, long refreshMs) {
+        Transaction tx = writes.beginTransaction(TransactionOptions.Builder.withXG(true));
+        try {
+            DeviceInfo device = update;
+            String oldRegId = null;
+            try {
+                DeviceInfo stored = EntityMapper.toDeviceInfo(writes.get(tx, update.getKey()));
+                if (!Storage.needsWrite(stored, update, refreshMs)) {
+                    Metrics.get().counter(Metrics.REGISTRATION_WRITES_SKIPPED).inc();
+                    return stored; // rolled back below - nothing was written
+                }
+                oldRegId = stored.getDeviceRegistrationID();
+                device = stored;
+                device.setDeviceRegistrationID(update.getDeviceRegistrationID());
+                device.setType(update.getType());
+                device.setRegistrationTimestamp(update.getRegistrationTimestamp());
+                device.setName(update.getName());
+                device.setGcm(update.getGcm());
+            } catch (EntityNotFoundException e) {
+                // new device
+            }
+            writes.put(tx, EntityMapper.toEntity(device));
+
+            String keyName = device.getKey().getName();
+            String regId = device.getDeviceRegistrationID();
+            RegistrationIndexChanges index = new RegistrationIndexChanges(writes, tx);
+            if (oldRegId != null && !oldRegId.equals(regId)) {
+                index.remove(oldRegId, keyName);
+            }
+            index.add(regId, keyName);
+            index.write();
+            tx.commit();
+            return device;
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        }
+    }
+
+    @Override
+    public void updateRegistration(String userName, String regId, String canonicalRegId) {
+        List<Key> keys = userDeviceKeys(userName, regId);
+        if (keys.isEmpty()) {
+            log.fine("No device for " + userName + " " + regId);
+            return;
+        }
+        Transaction tx = writes.beginTransaction(TransactionOptions.Builder.withXG(true));
+        try {
+            Map<Key, Entity> current = writes.get(tx, keys);
+            RegistrationIndexChanges index = new RegistrationIndexChanges(writes, tx);
+            List<Entity> puts = new ArrayList<Entity>(keys.size());
+            for (Key key : keys) {
+                Entity entity = current.get(key);
+                if (entity == null ||
+                        !regId.equals(entity.getProperty(EntityMapper.REGISTRATION_ID))) {
+                    continue; // changed since the lookup
+                }
+                entity.setProperty(EntityMapper.REGISTRATION_ID, canonicalRegId);
+                puts.add(entity);
+                index.remove(regId, key.getName());
+                index.add(canonicalRegId, key.getName());
+            }
+            writes.put(tx, puts);
+            index.write();
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        }
+    }
+
+    @Override
+    public void deleteRegistration(String userName, String regId) {
+        try {
+            List<Key> keys = userDeviceKeys(userName, regId);
+            Transaction tx = writes.beginTransaction(TransactionOptions.Builder.withXG(true));
+            try {
+                Map<Key, Entity> current = writes.get(tx, keys);
+                RegistrationIndexChanges index = new RegistrationIndexChanges(writes, tx);
+                List<Key> deletes = new ArrayList<Key>(keys.size());
+                for (Key key : keys) {
+                    Entity entity = current.get(key);
+                    if (entity != null &&
+                            regId.equals(entity.getProperty(EntityMapper.REGISTRATION_ID))) {
+                        deletes.add(key);
+                        // Keep looping in case of duplicates
+                    }
+                    index.remove(regId, key.getName());
+                }
+                writes.delete(tx, deletes);
+                index.write();
+                tx.commit();
+            } finally {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+            }
+        } catch (Exception e) {
+            log.warning("Error unregistering device: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void deleteDevices(List<DeviceInfo> devices) {
+        for (int i = 0; i < devices.size(); i += DELETE_BATCH_SIZE) {
+            deleteBatch(devices.subList(i, Math.min(devices.size(), i + DELETE_BATCH_SIZE)));
+        }
+    }
+
+    /**
+     * One batch get and one batch delete. Devices whose registration id
+     * changed since they were loaded are kept. Errors are thrown - callers
+     * like the prune jobs retry the whole batch.
+     */
+    private void deleteBatch(List<DeviceInfo> devices) {
+        Transaction tx = writes.beginTransaction(TransactionOptions.Builder.withXG(true));
+        try {
+            List<Key> keys = new ArrayList<Key>(devices.size());
+            List<String> regIds = new ArrayList<String>(devices.size());
+            for (DeviceInfo device : devices) {
+                keys.add(device.getKey());
+                regIds.add(device.getDeviceRegistrationID());
+            }
+            Map<Key, Entity> current = writes.get(tx, keys);
+            RegistrationIndexChanges index = new RegistrationIndexChanges(writes, tx);
+            index.load(regIds);
+            List<Key> deletes = new ArrayList<Key>(devices.size());
+            for (DeviceInfo device : devices) {
+                Entity entity = current.get(device.getKey());
+                String regId = device.getDeviceRegistrationID();
+                if (entity != null && regId != null &&
+                        regId.equals(entity.getProperty(EntityMapper.REGISTRATION_ID))) {
+                    deletes.add(device.getKey());
+                }
+                // Stale either way
+                index.remove(regId, device.getKey().getName());
+            }
+            writes.delete(tx, deletes);
+            index.write();
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        }
+    }
+
+    @Override
+    public List<DeviceInfo> listDevices(String afterKeyName, int limit) {
+        // Kind queries are sorted by key.
+        Query query = new Query(EntityMapper.DEVICE_KIND);
+        if (afterKeyName != null) {
+            query.setFilter(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
+                    FilterOperator.GREATER_THAN, EntityMapper.deviceKey(afterKeyName)));
+        }
+        List<DeviceInfo> res = new ArrayList<DeviceInfo>();
+        for (Entity entity : reads.prepare(query).asIterable(
+                FetchOptions.Builder.withLimit(limit).chunkSize(Math.min(limit, 500)))) {
+            res.add(EntityMapper.toDeviceInfo(entity));
+        }
+        return res;
+    }
+
+    @Override
+    public List<String> findDeviceKeys(String regId) {
+        List<String> res = new ArrayList<String>();
+        try {
+            Entity index = reads.get(RegistrationIndex.createKey(regId));
+            @SuppressWarnings("unchecked")
+            List<String> stored = (List<String>) index.getProperty(
+                    RegistrationIndexChanges.PROPERTY_DEVICE_KEYS);
+            if (stored != null) {
+                res.addAll(stored);
+            }
+        } catch (EntityNotFoundException e) {
+            // not registered
+        }
+        return res;
+    }
+
+    /**
+     * Keys of the user's devices with the registration id. Devices saved
+     * before the index existed are found with the user's key range, until
+     * RegistrationIndexBackfillServlet has run.
+     */
+    private List<Key> userDeviceKeys(String userName, String regId) {
+        List<Key> res = new ArrayList<Key>();
+        for (String keyName : findDeviceKeys(regId)) {
+            if (userName.equals(Storage.getUser(keyName))) {
+                res.add(EntityMapper.deviceKey(keyName));
+            }
+        }
+        if (res.isEmpty()) {
+            for (DeviceInfo device : queryDevices(userName)) {
+                if (regId.equals(device.getDeviceRegistrationID())) {
+                    res.add(device.getKey());
+                }
+            }
+        }
+        return res;
+    }
+}
@@ -2,19 +2,33 @@
  */
 package com.google.android.chrometophone.server;
 
+import java.io.IOException;
+
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * @deprecated
+ * Metrics for this instance - admin only (see web.xml).
+ *
+ * JSON by default, format=text for the Prometheus text format.
  */
+@SuppressWarnings("serial")
 public class DebugServlet extends HttpServlet {
-    
+
     @Override
-    public void doGet(HttpServletRequest req, HttpServletResponse resp) {
-        // Nothing, we're just looking for logs to find response times and delivery
-        // confirmation. 
-        // TODO: use memcache to dynamically get statistics.
+    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Metrics metrics = Metrics.get();
+        // Registers the storage gauges, if this is the first request.
+        Storage.get(getServletContext());
+
+        resp.setHeader("Cache-Control", "no-cache");
+        if ("text".equals(req.getParameter("format"))) {
+            resp.setContentType("text/plain; version=0.0.4");
+            metrics.writeText(resp.getWriter());
+        } else {
+            resp.setContentType("application/json");
+            metrics.writeJson(resp.getWriter());
+        }
     }
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Remembers recent sends for a short time, so duplicates (double clicks,
+ * client and XMPP resends) are not delivered again.
+ *
+ * Keys are 64 bit fingerprints of user, device filter, normalized URL and
+ * selection, kept in a fixed size open addressing table - old entries are
+ * overwritten when the table is full, which only means a duplicate may be
+ * sent.
+ */
+public class DedupeWindow {
+    static final long DEFAULT_WINDOW_MS = 10 * 1000;
+    static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Result for a send still in progress.
+     */
+    static final String PENDING = "OK";
+
+    private static final int MAX_PROBES = 8;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static DedupeWindow instance;
+
+    private final long windowMs;
+    private final int mask;
+    private final long[] fingerprints;
+    private final long[] expires;
+    private final String[] results;
+
+    public DedupeWindow(int capacity, long windowMs) {
+        int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+        this.windowMs = windowMs;
+        this.mask = size - 1;
+        fingerprints = new long[size];
+        expires = new long[size];
+        results = new String[size];
+    }
+
+    public static synchronized DedupeWindow get() {
+        if (instance == null) {
+            instance = new DedupeWindow(DEFAULT_CAPACITY, DEFAULT_WINDOW_MS);
+        }
+        return instance;
+    }
+
+    /**
+     * Fingerprint of a send request.
+     *
+     * @param deviceNames may be null
+     * @param deviceType may be null
+     */
+    public static long fingerprint(String user, String url, String sel,
+                                   String[] deviceNames, String deviceType) {
+        long h = FNV_OFFSET;
+        h = hash(h, user);
+        h = hash(h, normalizeUrl(url));
+        h = hash(h, sel == null ? "" : sel.trim());
+        if (deviceNames != null) {
+            String[] sorted = deviceNames.clone();
+            Arrays.sort(sorted);
+            for (String name : sorted) {
+                h = hash(h, name);
+            }
+        }
+        h = hash(h, deviceType);
+        // 0 marks free slots
+        return h == 0 ? 1 : h;
+    }
+
+    public static long fingerprint(String s) {
+        return hash(FNV_OFFSET, s);
+    }
+
+    /**
+     * Lower case scheme and host, drop the default port and an empty path,
+     * so equivalent forms of a link get the same key.
+     */
+    static String normalizeUrl(String url) {
+        url = url.trim();
+        try {
+            URI uri = new URI(url);
+            if (uri.getScheme() == null || uri.getHost() == null) {
+                return url;
+            }
+            String scheme = uri.getScheme().toLowerCase(Locale.US);
+            int port = uri.getPort();
+            if (("http".equals(scheme) && port == 80) ||
+                    ("https".equals(scheme) && port == 443)) {
+                port = -1;
+            }
+            String path = uri.getRawPath();
+            if (path == null || path.isEmpty()) {
+                path = "/";
+            }
+            StringBuilder sb = new StringBuilder(url.length());
+            sb.append(scheme).append("://");
+            if (uri.getRawUserInfo() != null) {
+                sb.append(uri.getRawUserInfo()).append('@');
+            }
+            sb.append(uri.getHost().toLowerCase(Locale.US));
+            if (port != -1) {
+                sb.append(':').append(port);
+            }
+            sb.append(path);
+            if (uri.getRawQuery() != null) {
+                sb.append('?').append(uri.getRawQuery());
+            }
+            if (uri.getRawFragment() != null) {
+                sb.append('#').append(uri.getRawFragment());
+            }
+            return sb.toString();
+        } catch (URISyntaxException e) {
+            return url;
+        }
+    }
+
+    private static long hash(long h, String s) {
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= FNV_PRIME;
+            }
+        }
+        // separator, so ("ab", "c") != ("a", "bc")
+        h ^= 0xff;
+        h *= FNV_PRIME;
+        return h;
+    }
+
+    /**
+     * Start a send, unless the same send was started within the window.
+     *
+     * @return null if the caller should send, else the result of the
+     *     original send - PENDING if it's still in progress.
+     */
+    public synchronized String begin(long fingerprint) {
+        long now = System.currentTimeMillis();
+        int free = -1;
+        int oldest = -1;
+        int start = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = (start + i) & mask;
+            if (fingerprints[slot] == fingerprint && expires[slot] > now) {
+                return results[slot];
+            }
+            if (free < 0 && (fingerprints[slot] == 0 || expires[slot] <= now)) {
+                free = slot;
+            }
+            if (oldest < 0 || expires[slot] < expires[oldest]) {
+                oldest = slot;
+            }
+        }
+        int slot = free >= 0 ? free : oldest;
+        fingerprints[slot] = fingerprint;
+        expires[slot] = now + windowMs;
+        results[slot] = PENDING;
+        return null;
+    }
+
+    /**
+     * Record the result of a send started with begin(). Failed sends should
+     * call cancel() instead, so they can be retried.
+     */
+    public synchronized void complete(long fingerprint, String result) {
+        int slot = find(fingerprint);
+        if (slot >= 0) {
+            results[slot] = result;
+        }
+    }
+
+    public synchronized void cancel(long fingerprint) {
+        int slot = find(fingerprint);
+        if (slot >= 0) {
+            fingerprints[slot] = 0;
+            results[slot] = null;
+        }
+    }
+
+    private int find(long fingerprint) {
+        int start = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = (start + i) & mask;
+            if (fingerprints[slot] == fingerprint) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Two level cache for the devices of a user.
+ *
+ * L1 is a small LRU in the instance, L2 is the shared cache. Each user has a
+ * version counter in L2, incremented on every change - L2 entries are only
+ * used if they were loaded at the current version.
+ *
+ * Counters are created at the current time in ms, not 0: the counter and
+ * the device list are evicted independently, and a counter created again
+ * from 0 could match the version of an old list.
+ *
+ * L1 entries are used without checking the version for L1_TTL_MS: a change
+ * made on another instance may not be seen for that long. Changes made on
+ * this instance drop the L1 entry right away, and L1 is only filled with
+ * entries at the current version.
+ *
+ * Devices are copied in and out of the cache, callers can change them.
+ */
+public class DeviceCache {
+    static final int L1_MAX_ENTRIES = 1000;
+    static final long L1_TTL_MS = 5000;
+    static final int L2_EXPIRATION_SECONDS = 3600;
+
+    private static final String VERSION_PREFIX = "dv:";
+    private static final String DEVICES_PREFIX = "dl:";
+
+    private final SharedCache shared;
+
+    @SuppressWarnings("serial")
+    private final Map<String, Entry> l1 =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DeviceCache.Entry> eldest) {
+            return size() > L1_MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Cached device list, at the version of the user's counter when it was
+     * loaded.
+     */
+    static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long version;
+        final ArrayList<DeviceInfo> devices;
+        transient long loadedAt;
+
+        Entry(long version, List<DeviceInfo> devices) {
+            this.version = version;
+            this.devices = copyOf(devices);
+        }
+    }
+
+    static ArrayList<DeviceInfo> copyOf(List<DeviceInfo> devices) {
+        ArrayList<DeviceInfo> copy = new ArrayList<DeviceInfo>(devices.size());
+        for (DeviceInfo device : devices) {
+            copy.add(device.copy());
+        }
+        return copy;
+    }
+
+    public DeviceCache(SharedCache shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * @return a copy of the cached devices, or null on miss.
+     */
+    public List<DeviceInfo> get(String user) {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (l1) {
+            entry = l1.get(user);
+        }
+        if (entry != null && now - entry.loadedAt < L1_TTL_MS) {
+            Metrics.get().counter(Metrics.DEVICE_CACHE_L1_HITS).inc();
+            return copyOf(entry.devices);
+        }
+
+        String versionKey = VERSION_PREFIX + user;
+        String devicesKey = DEVICES_PREFIX + user;
+        Map<String, Object> l2 = shared.getAll(Arrays.asList(versionKey, devicesKey));
+        Object version = l2.get(versionKey);
+        Object cached = l2.get(devicesKey);
+        if (version instanceof Long && cached instanceof Entry &&
+                ((Entry) cached).version == (Long) version) {
+            entry = (Entry) cached;
+            entry.loadedAt = now;
+            synchronized (l1) {
+                l1.put(user, entry);
+            }
+            Metrics.get().counter(Metrics.DEVICE_CACHE_L2_HITS).inc();
+            return copyOf(entry.devices);
+        }
+
+        Metrics.get().counter(Metrics.DEVICE_CACHE_MISSES).inc();
+        return null;
+    }
+
+    /**
+     * Current version of the user's devices, to be read before loading them
+     * after a miss.
+     *
+     * @return -1 if the shared cache is not available.
+     */
+    public long version(String user) {
+        // Creates the counter if evicted or first use.
+        Long version = increment(user, 0);
+        return version == null ? -1 : version;
+    }
+
+    /**
+     * Cache devices loaded after a miss. The version must be read before
+     * loading - if the devices changed in the mean time the entry will not
+     * match the counter and is ignored.
+     */
+    public void put(String user, long version, List<DeviceInfo> devices) {
+        if (version < 0) {
+            return; // shared cache not available
+        }
+        Entry entry = new Entry(version, devices);
+        shared.put(DEVICES_PREFIX + user, entry, L2_EXPIRATION_SECONDS);
+        entry.loadedAt = System.currentTimeMillis();
+        synchronized (l1) {
+            l1.put(user, entry);
+        }
+        // L1 hits don't check the counter: drop the entry if the load raced
+        // with a change. invalidate() increments before removing, so either
+        // this sees the new version or the removal comes after the put.
+        Long current = increment(user, 0);
+        if (current == null || current != version) {
+            synchronized (l1) {
+                if (l1.get(user) == entry) {
+                    l1.remove(user);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add to the user's counter - see the class comment for the initial
+     * value.
+     */
+    private Long increment(String user, long delta) {
+        return shared.increment(VERSION_PREFIX + user, delta, System.currentTimeMillis());
+    }
+
+    /**
+     * Called after any change to the user's devices.
+     */
+    public void invalidate(String user) {
+        Metrics.get().counter(Metrics.DEVICE_CACHE_INVALIDATIONS).inc();
+        // Before removing from L1 - see put().
+        increment(user, 1);
+        synchronized (l1) {
+            l1.remove(user);
+        }
+    }
+}
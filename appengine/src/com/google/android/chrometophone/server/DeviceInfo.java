@@ -18,6 +18,7 @@ package com.google.android.chrometophone.server;
 
 import com.google.appengine.api.datastore.Key;
 
+import java.io.Serializable;
 import java.util.Date;
 
 import javax.jdo.annotations.Extension;
@@ -35,8 +36,9 @@ import javax.jdo.annotations.PrimaryKey;
  * registrations lists different phones registered to that account.
  */
 @PersistenceCapable(identityType = IdentityType.APPLICATION)
-public class DeviceInfo {
-  
+public class DeviceInfo implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     public static final String TYPE_AC2DM = "ac2dm";
     public static final String TYPE_CHROME = "chrome";
 
@@ -170,5 +172,19 @@ public class DeviceInfo {
         return registrationTimestamp;
     }
 
-
+    /**
+     * Detached copy - DeviceCache and the backends keeping devices in
+     * memory hand out copies, so callers can change the devices they get.
+     */
+    DeviceInfo copy() {
+        DeviceInfo copy = new DeviceInfo(key);
+        copy.deviceRegistrationID = deviceRegistrationID;
+        copy.type = type;
+        copy.name = name;
+        copy.registrationTimestamp = registrationTimestamp == null ?
+                null : new Date(registrationTimestamp.getTime());
+        copy.debug = debug;
+        copy.gcm = gcm;
+        return copy;
+    }
 }
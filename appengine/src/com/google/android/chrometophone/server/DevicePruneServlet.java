@@ -0,0 +1,289 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.android.gcm.server.Constants;
+import com.google.android.gcm.server.Message;
+import com.google.android.gcm.server.MulticastResult;
+import com.google.android.gcm.server.Result;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Expires registrations of devices that are no longer used.
+ *
+ * Run daily by cron. Pages through the DeviceInfo entities that haven't
+ * registered for STALE_DAYS, oldest first, and sends them the refresh
+ * ping - GCMIntentService answers it by calling /update, which sets a new
+ * registrationTimestamp. The ping time is kept in a DevicePing entity. A
+ * device that still hasn't updated CHECKIN_DAYS after its ping is deleted,
+ * and so are the ones GCM reports as not registered.
+ *
+ * Each page is one multicast of up to 1000 devices (the GCM limit); the
+ * next page is a task on the 'prune' queue, whose rate limits the pings.
+ * After the last page the DevicePing entities are swept, a page per task:
+ * pings of devices deleted since - unregistered, trimmed or pruned after a
+ * send - are deleted.
+ * Only GCM devices are pinged - C2DM is gone and browser channels can't
+ * be - and only with the datastore storage backends.
+ */
+@SuppressWarnings("serial")
+public class DevicePruneServlet extends HttpServlet {
+    private static final Logger log = Logger.getLogger(DevicePruneServlet.class.getName());
+
+    static final String QUEUE_NAME = "prune";
+    static final String TASK_URL = "/tasks/prune-devices";
+
+    /**
+     * Handled by GCMIntentService.
+     */
+    static final String REFRESH_URL = "https://chrometophone.appspot.com/refresh";
+
+    static final String PARAM_SWEEP = "sweep";
+
+    static final String PING_KIND = "DevicePing";
+    static final String PROPERTY_PING_TIMESTAMP = "pingTimestamp";
+
+    static final int PAGE_SIZE = 1000;
+    static final long STALE_DAYS = 30;
+    static final long CHECKIN_DAYS = 7;
+
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        doPost(req, resp);
+    }
+
+    @Override
+    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/plain");
+        Storage storage = Storage.get(getServletContext());
+        if (!storage.hasDeviceEntities()) {
+            resp.getWriter().println("ERROR (storage backend has no DeviceInfo entities)");
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        FetchOptions fetch = FetchOptions.Builder.withLimit(PAGE_SIZE);
+        String cursor = req.getParameter("cursor");
+        if (cursor != null) {
+            fetch.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        if (req.getParameter(PARAM_SWEEP) != null) {
+            sweepPings(datastore, fetch, resp);
+            return;
+        }
+        Query query = new Query(EntityMapper.DEVICE_KIND)
+                .setFilter(new FilterPredicate(EntityMapper.REGISTRATION_TIMESTAMP,
+                        FilterOperator.LESS_THAN, new Date(now - STALE_DAYS * DAY_MS)))
+                .addSort(EntityMapper.REGISTRATION_TIMESTAMP, SortDirection.ASCENDING);
+        QueryResultList<Entity> page = datastore.prepare(query).asQueryResultList(fetch);
+
+        List<DeviceInfo> devices = new ArrayList<DeviceInfo>(page.size());
+        List<Key> pingKeys = new ArrayList<Key>(page.size());
+        for (Entity entity : page) {
+            DeviceInfo device = EntityMapper.toDeviceInfo(entity);
+            if (Boolean.TRUE.equals(device.getGcm()) &&
+                    device.getDeviceRegistrationID() != null) {
+                devices.add(device);
+                pingKeys.add(pingKey(device));
+            }
+        }
+        Map<Key, Entity> pings = datastore.get(pingKeys);
+
+        List<DeviceInfo> prune = new ArrayList<DeviceInfo>();
+        List<DeviceInfo> ping = new ArrayList<DeviceInfo>();
+        for (DeviceInfo device : devices) {
+            Entity pingEntity = pings.get(pingKey(device));
+            Date pinged = pingEntity == null ? null :
+                    (Date) pingEntity.getProperty(PROPERTY_PING_TIMESTAMP);
+            if (pinged == null || !pinged.after(device.getRegistrationTimestamp())) {
+                ping.add(device);
+            } else if (pinged.getTime() < now - CHECKIN_DAYS * DAY_MS) {
+                prune.add(device); // didn't answer the ping
+            }
+            // else: pinged recently, wait for the answer
+        }
+
+        int pinged = sendPings(storage, datastore, ping, prune, now);
+        if (!prune.isEmpty()) {
+            storage.deleteDevices(prune);
+            List<Key> keys = new ArrayList<Key>(prune.size());
+            for (DeviceInfo device : prune) {
+                keys.add(pingKey(device));
+            }
+            datastore.delete(keys);
+            Metrics.get().counter(Metrics.REGISTRATIONS_PRUNED).add(prune.size());
+        }
+
+        String status = "pinged " + pinged + ", pruned " + prune.size() + " of " +
+                page.size() + " stale devices";
+        if (page.size() < PAGE_SIZE) {
+            QueueFactory.getQueue(QUEUE_NAME).add(
+                    TaskOptions.Builder.withUrl(TASK_URL).param(PARAM_SWEEP, "1"));
+            log.info("Device pruning done, " + status + ", sweeping pings");
+            resp.getWriter().println("OK done, " + status);
+            return;
+        }
+        String next = page.getCursor().toWebSafeString();
+        QueueFactory.getQueue(QUEUE_NAME).add(
+                TaskOptions.Builder.withUrl(TASK_URL).param("cursor", next));
+        log.info("Device pruning " + status + ", continuing");
+        resp.getWriter().println("OK " + status + ", next " + next);
+    }
+
+    /**
+     * Send the refresh ping with one multicast, and record the pings that
+     * were accepted. Devices GCM doesn't know are added to prune.
+     *
+     * @return the number of devices pinged.
+     */
+    private static int sendPings(Storage storage, DatastoreService datastore,
+            List<DeviceInfo> devices, List<DeviceInfo> prune, long now) {
+        if (devices.isEmpty()) {
+            return 0;
+        }
+        List<String> regIds = new ArrayList<String>(devices.size());
+        for (DeviceInfo device : devices) {
+            regIds.add(device.getDeviceRegistrationID());
+        }
+        Message message = new Message.Builder()
+                .collapseKey("refresh")
+                .delayWhileIdle(true)
+                .addData("url", REFRESH_URL)
+                .addData("title", "")
+                .addData("sel", "")
+                .build();
+        MulticastResult multicast;
+        long start = System.nanoTime();
+        try {
+            multicast = storage.getConfigHolder().getSender().sendNoRetry(message, regIds);
+        } catch (IOException e) {
+            // Next run will try again.
+            log.log(Level.WARNING, "Error sending refresh pings", e);
+            return 0;
+        } finally {
+            Metrics.get().histogram(Metrics.SEND_GCM_MS).observeSince(start);
+        }
+
+        List<Entity> pings = new ArrayList<Entity>(devices.size());
+        List<RegistryWriteBehind.Action> maintenance =
+                new ArrayList<RegistryWriteBehind.Action>();
+        List<Result> results = multicast.getResults();
+        for (int i = 0; i < devices.size() && i < results.size(); i++) {
+            DeviceInfo device = devices.get(i);
+            Result result = results.get(i);
+            if (result.getMessageId() != null) {
+                Entity ping = new Entity(pingKey(device));
+                ping.setUnindexedProperty(PROPERTY_PING_TIMESTAMP, new Date(now));
+                pings.add(ping);
+                if (result.getCanonicalRegistrationId() != null) {
+                    maintenance.add(RegistryWriteBehind.Action.update(device,
+                            result.getCanonicalRegistrationId()));
+                }
+            } else {
+                String error = result.getErrorCodeName();
+                if (Constants.ERROR_NOT_REGISTERED.equals(error) ||
+                        Constants.ERROR_INVALID_REGISTRATION.equals(error)) {
+                    prune.add(device);
+                }
+                // else: not pinged, try again next run
+            }
+        }
+        datastore.put(pings);
+        RegistryWriteBehind.submit(maintenance);
+        Metrics.get().counter(Metrics.REFRESH_PINGS).add(pings.size());
+        return pings.size();
+    }
+
+    /**
+     * One page of the ping sweep.
+     */
+    private static void sweepPings(DatastoreService datastore, FetchOptions fetch,
+                                   HttpServletResponse resp) throws IOException {
+        QueryResultList<Entity> page = datastore.prepare(new Query(PING_KIND).setKeysOnly())
+                .asQueryResultList(fetch);
+        List<Key> pingKeys = new ArrayList<Key>(page.size());
+        for (Entity ping : page) {
+            pingKeys.add(ping.getKey());
+        }
+        int deleted = deleteOrphanedPings(datastore, pingKeys);
+
+        String status = "deleted " + deleted + " of " + page.size() + " pings";
+        if (page.size() < PAGE_SIZE) {
+            log.info("Ping sweep done, " + status);
+            resp.getWriter().println("OK done, " + status);
+            return;
+        }
+        String next = page.getCursor().toWebSafeString();
+        QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withUrl(TASK_URL)
+                .param(PARAM_SWEEP, "1").param("cursor", next));
+        log.info("Ping sweep " + status + ", continuing");
+        resp.getWriter().println("OK " + status + ", next " + next);
+    }
+
+    /**
+     * Delete the pings whose device doesn't exist any more.
+     *
+     * @return the number of pings deleted.
+     */
+    static int deleteOrphanedPings(DatastoreService datastore, List<Key> pingKeys) {
+        List<Key> deviceKeys = new ArrayList<Key>(pingKeys.size());
+        for (Key pingKey : pingKeys) {
+            deviceKeys.add(EntityMapper.deviceKey(pingKey.getName()));
+        }
+        Map<Key, Entity> devices = datastore.get(deviceKeys);
+        List<Key> orphans = new ArrayList<Key>();
+        for (Key pingKey : pingKeys) {
+            if (!devices.containsKey(EntityMapper.deviceKey(pingKey.getName()))) {
+                orphans.add(pingKey);
+            }
+        }
+        datastore.delete(orphans);
+        return orphans.size();
+    }
+
+    private static Key pingKey(DeviceInfo device) {
+        return KeyFactory.createKey(PING_KIND, device.getKey().getName());
+    }
+}
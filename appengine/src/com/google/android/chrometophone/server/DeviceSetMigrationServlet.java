@@ -0,0 +1,101 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Moves per-device DeviceInfo entities to DeviceSet entities, one batch of
+ * devices per request. Each batch adds a task for the next one, until all
+ * users are migrated - start it by opening the URL as admin.
+ *
+ * Only works with the 'deviceset' storage backend. Safe to run again, or
+ * concurrently with registrations.
+ */
+@SuppressWarnings("serial")
+public class DeviceSetMigrationServlet extends HttpServlet {
+    private static final Logger log =
+            Logger.getLogger(DeviceSetMigrationServlet.class.getName());
+
+    static final String TASK_URL = "/tasks/migrate-devices";
+    static final int BATCH_SIZE = 100;
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        doPost(req, resp);
+    }
+
+    @Override
+    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/plain");
+        StorageBackend backend = Storage.get(getServletContext()).getBackend();
+        if (!(backend instanceof DeviceSetStorageBackend)) {
+            resp.getWriter().println("ERROR (storage backend is not deviceset)");
+            return;
+        }
+        DeviceSetStorageBackend sets = (DeviceSetStorageBackend) backend;
+
+        FetchOptions fetch = FetchOptions.Builder.withLimit(BATCH_SIZE);
+        String cursor = req.getParameter("cursor");
+        if (cursor != null) {
+            fetch.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Query query = new Query(DeviceInfo.class.getSimpleName()).setKeysOnly();
+        QueryResultList<Entity> batch = datastore.prepare(query).asQueryResultList(fetch);
+
+        // Keys are sorted, the devices of a user are next to each other.
+        Set<String> users = new LinkedHashSet<String>();
+        for (Entity device : batch) {
+            users.add(Storage.getUser(device.getKey()));
+        }
+        int migrated = 0;
+        for (String user : users) {
+            if (sets.migrateUser(user)) {
+                migrated++;
+            }
+        }
+
+        if (batch.size() < BATCH_SIZE) {
+            log.info("Device set migration done");
+            resp.getWriter().println("OK done, migrated " + migrated);
+            return;
+        }
+        String next = batch.getCursor().toWebSafeString();
+        QueueFactory.getDefaultQueue().add(
+                TaskOptions.Builder.withUrl(TASK_URL).param("cursor", next));
+        log.info("Migrated " + migrated + " of " + users.size() + " users, continuing");
+        resp.getWriter().println("OK migrated " + migrated + ", next " + next);
+    }
+}
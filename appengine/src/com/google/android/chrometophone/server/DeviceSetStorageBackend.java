@@ -0,0 +1,465 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Datastore backend keeping all devices of a user in one 'DeviceSet'
+ * entity, so loading them is one strongly consistent get instead of a
+ * key range query.
+ *
+ * Updates are read-modify-write in (cross-group, with the
+ * RegistrationIndex) transactions, retried on concurrent modification.
+ *
+ * Users without a set still have per-device DeviceInfo entities - they are
+ * read from there, and moved to a set on the first change or by
+ * DeviceSetMigrationServlet. Empty sets are kept, they mark the user as
+ * migrated. Config is stored like in DatastoreStorageBackend.
+ */
+public class DeviceSetStorageBackend implements StorageBackend {
+    private static final Logger log =
+            Logger.getLogger(DeviceSetStorageBackend.class.getName());
+
+    static final String KIND = "DeviceSet";
+    static final String PROPERTY_DEVICES = "devices";
+
+    /**
+     * RegisterServlet trims to MAX_DEVICES before adding a device.
+     */
+    static final int MAX_DEVICES = RegisterServlet.MAX_DEVICES + 1;
+
+    static final int MAX_ATTEMPTS = 5;
+
+    private final DatastoreService datastore;
+    private final DatastoreStorageBackend legacy;
+
+    public DeviceSetStorageBackend(ServletContext ctx) {
+        this.datastore = DatastoreServiceFactory.getDatastoreService();
+        this.legacy = new DatastoreStorageBackend();
+    }
+
+    /**
+     * A change to a user's devices, run in a transaction. May run more than
+     * once.
+     */
+    private interface Mutation {
+        /**
+         * @param devices current devices, to be modified in place.
+         * @param exists false if there is no set yet - devices is empty.
+         * @return false if nothing changed.
+         */
+        boolean apply(List<DeviceInfo> devices, boolean exists, RegistrationIndexChanges index);
+    }
+
+    static Key setKey(String user) {
+        return KeyFactory.createKey(KIND, user);
+    }
+
+    /**
+     * Run the mutation on the user's set, migrating the user first if there
+     * is no set yet.
+     */
+    private void update(String user, Mutation mutation) {
+        update(user, mutation, true);
+    }
+
+    private void update(String user, Mutation mutation, boolean migrate) {
+        Key key = setKey(user);
+        for (int attempt = 1; ; attempt++) {
+            Transaction tx = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+            try {
+                List<DeviceInfo> devices;
+                boolean exists;
+                try {
+                    devices = fromEntity(datastore.get(tx, key));
+                    exists = true;
+                } catch (EntityNotFoundException e) {
+                    if (migrate) {
+                        // Only users without a set pay for the migration check.
+                        tx.rollback();
+                        migrateUser(user);
+                        migrate = false;
+                        continue;
+                    }
+                    devices = new ArrayList<DeviceInfo>();
+                    exists = false;
+                }
+                RegistrationIndexChanges index = new RegistrationIndexChanges(datastore, tx);
+                if (mutation.apply(devices, exists, index)) {
+                    datastore.put(tx, toEntity(key, devices));
+                    index.write();
+                }
+                tx.commit();
+                return;
+            } catch (ConcurrentModificationException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                log.info("Device set of " + user + " changed, retrying");
+            } finally {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+            }
+        }
+    }
+
+    private Entity getSet(String user) {
+        try {
+            return datastore.get(setKey(user));
+        } catch (EntityNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Move the user's per-device entities to a set, if not done yet.
+     *
+     * @return true if the user was migrated by this call.
+     */
+    public boolean migrateUser(String user) {
+        if (getSet(user) != null) {
+            return false;
+        }
+        final List<DeviceInfo> legacyDevices = legacy.loadDevices(user);
+        if (legacyDevices == null) {
+            throw new IllegalStateException("Can't load devices of " + user);
+        }
+        final boolean[] created = new boolean[1];
+        update(user, new Mutation() {
+            @Override
+            public boolean apply(List<DeviceInfo> devices, boolean exists,
+                                 RegistrationIndexChanges index) {
+                created[0] = !exists;
+                if (exists) {
+                    return false; // migrated concurrently
+                }
+                for (DeviceInfo device : legacyDevices) {
+                    devices.add(device);
+                    index.add(device.getDeviceRegistrationID(), device.getKey().getName());
+                }
+                trim(devices, index);
+                return true;
+            }
+        }, false);
+        if (!created[0]) {
+            return false;
+        }
+        List<Key> keys = new ArrayList<Key>(legacyDevices.size());
+        for (DeviceInfo device : legacyDevices) {
+            keys.add(device.getKey());
+        }
+        // The set is used from now on - the old entities are just garbage,
+        // deleting them may fail.
+        datastore.delete(keys);
+        log.info("Migrated " + keys.size() + " devices of " + user);
+        return true;
+    }
+
+    /**
+     * Drop the oldest devices over the limit.
+     */
+    private static void trim(List<DeviceInfo> devices, RegistrationIndexChanges index) {
+        while (devices.size() > MAX_DEVICES) {
+            DeviceInfo oldest = devices.get(0);
+            for (DeviceInfo device : devices) {
+                if (oldest.getRegistrationTimestamp() == null) {
+                    break;
+                }
+                if (device.getRegistrationTimestamp() == null ||
+                        device.getRegistrationTimestamp().before(
+                                oldest.getRegistrationTimestamp())) {
+                    oldest = device;
+                }
+            }
+            devices.remove(oldest);
+            index.remove(oldest.getDeviceRegistrationID(), oldest.getKey().getName());
+        }
+    }
+
+    @Override
+    public C2PConfig loadConfig() {
+        return legacy.loadConfig();
+    }
+
+    @Override
+    public void saveConfig(C2PConfig config) {
+        legacy.saveConfig(config);
+    }
+
+    @Override
+    public List<DeviceInfo> loadDevices(String userName) {
+        Entity set = getSet(userName);
+        if (set == null) {
+            return legacy.loadDevices(userName);
+        }
+        return fromEntity(set);
+    }
+
+    @Override
+    public DeviceInfo saveDevice(final DeviceInfo update, final long refreshMs) {
+        final String keyName = update.getKey().getName();
+        String user = Storage.getUser(keyName);
+        final DeviceInfo[] saved = new DeviceInfo[1];
+        update(user, new Mutation() {
+            @Override
+            public boolean apply(List<DeviceInfo> devices, boolean exists,
+                                 RegistrationIndexChanges index) {
+                DeviceInfo device = find(devices, keyName);
+                if (device == null) {
+                    device = update.copy();
+                    devices.add(device);
+                } else if (!Storage.needsWrite(device, update, refreshMs)) {
+                    Metrics.get().counter(Metrics.REGISTRATION_WRITES_SKIPPED).inc();
+                    saved[0] = device;
+                    return false;
+                } else {
+                    index.remove(device.getDeviceRegistrationID(), keyName);
+                    device.setDeviceRegistrationID(update.getDeviceRegistrationID());
+                    device.setType(update.getType());
+                    device.setRegistrationTimestamp(update.getRegistrationTimestamp());
+                    device.setName(update.getName());
+                    device.setGcm(update.getGcm());
+                }
+                index.add(device.getDeviceRegistrationID(), keyName);
+                trim(devices, index);
+                saved[0] = device;
+                return true;
+            }
+        });
+        return saved[0];
+    }
+
+    @Override
+    public void deleteRegistration(String userName, final String regId) {
+        update(userName, new Mutation() {
+            @Override
+            public boolean apply(List<DeviceInfo> devices, boolean exists,
+                                 RegistrationIndexChanges index) {
+                boolean changed = false;
+                Iterator<DeviceInfo> iterator = devices.iterator();
+                while (iterator.hasNext()) {
+                    DeviceInfo device = iterator.next();
+                    if (regId.equals(device.getDeviceRegistrationID())) {
+                        iterator.remove();
+                        index.remove(regId, device.getKey().getName());
+                        changed = true;
+                    }
+                }
+                return changed;
+            }
+        });
+    }
+
+    @Override
+    public void deleteDevices(List<DeviceInfo> devices) {
+        Map<String, List<DeviceInfo>> byUser = new HashMap<String, List<DeviceInfo>>();
+        for (DeviceInfo device : devices) {
+            String user = Storage.getUser(device.getKey());
+            List<DeviceInfo> userDevices = byUser.get(user);
+            if (userDevices == null) {
+                userDevices = new ArrayList<DeviceInfo>();
+                byUser.put(user, userDevices);
+            }
+            userDevices.add(device);
+        }
+        for (Map.Entry<String, List<DeviceInfo>> e : byUser.entrySet()) {
+            final List<DeviceInfo> expected = e.getValue();
+            update(e.getKey(), new Mutation() {
+                @Override
+                public boolean apply(List<DeviceInfo> devices, boolean exists,
+                                     RegistrationIndexChanges index) {
+                    boolean changed = false;
+                    for (DeviceInfo delete : expected) {
+                        String keyName = delete.getKey().getName();
+                        String regId = delete.getDeviceRegistrationID();
+                        DeviceInfo device = find(devices, keyName);
+                        if (device != null && regId != null &&
+                                regId.equals(device.getDeviceRegistrationID())) {
+                            devices.remove(device);
+                            index.remove(device.getDeviceRegistrationID(), keyName);
+                            changed = true;
+                        }
+                    }
+                    return changed;
+                }
+            });
+        }
+    }
+
+    @Override
+    public void updateRegistration(String userName, final String regId,
+            final String canonicalRegId) {
+        update(userName, new Mutation() {
+            @Override
+            public boolean apply(List<DeviceInfo> devices, boolean exists,
+                                 RegistrationIndexChanges index) {
+                boolean changed = false;
+                for (DeviceInfo device : devices) {
+                    if (regId.equals(device.getDeviceRegistrationID())) {
+                        String keyName = device.getKey().getName();
+                        device.setDeviceRegistrationID(canonicalRegId);
+                        index.remove(regId, keyName);
+                        index.add(canonicalRegId, keyName);
+                        changed = true;
+                    }
+                }
+                return changed;
+            }
+        });
+    }
+
+    @Override
+    public List<String> findDeviceKeys(String regId) {
+        return legacy.findDeviceKeys(regId);
+    }
+
+    /**
+     * Devices of the sets from the user of the cursor on, merged with the
+     * DeviceInfo entities of users without a set.
+     */
+    @Override
+    public List<DeviceInfo> listDevices(String afterKeyName, int limit) {
+        TreeMap<String, DeviceInfo> merged = new TreeMap<String, DeviceInfo>();
+        // Kind queries are sorted by key.
+        Query query = new Query(KIND);
+        if (afterKeyName != null) {
+            query.setFilter(new FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
+                    FilterOperator.GREATER_THAN_OR_EQUAL,
+                    setKey(Storage.getUser(afterKeyName))));
+        }
+        int count = 0;
+        for (Entity set : datastore.prepare(query).asIterable(
+                FetchOptions.Builder.withChunkSize(Math.min(limit, 500)))) {
+            for (DeviceInfo device : fromEntity(set)) {
+                String keyName = device.getKey().getName();
+                if (afterKeyName == null || keyName.compareTo(afterKeyName) > 0) {
+                    merged.put(keyName, device);
+                    count++;
+                }
+            }
+            if (count >= limit) {
+                break;
+            }
+        }
+
+        // Entities of migrated users are garbage - see migrateUser().
+        String after = afterKeyName;
+        int legacyCount = 0;
+        while (legacyCount < limit) {
+            List<DeviceInfo> page = legacy.listDevices(after, limit);
+            Set<Key> setKeys = new HashSet<Key>();
+            for (DeviceInfo device : page) {
+                setKeys.add(setKey(Storage.getUser(device.getKey())));
+            }
+            Map<Key, Entity> sets = datastore.get(setKeys);
+            for (DeviceInfo device : page) {
+                if (!sets.containsKey(setKey(Storage.getUser(device.getKey())))) {
+                    merged.put(device.getKey().getName(), device);
+                    legacyCount++;
+                }
+            }
+            if (page.size() < limit) {
+                break;
+            }
+            after = page.get(page.size() - 1).getKey().getName();
+        }
+
+        List<DeviceInfo> res = new ArrayList<DeviceInfo>(Math.min(limit, merged.size()));
+        for (DeviceInfo device : merged.values()) {
+            if (res.size() == limit) {
+                break;
+            }
+            res.add(device);
+        }
+        return res;
+    }
+
+    private static DeviceInfo find(List<DeviceInfo> devices, String keyName) {
+        for (DeviceInfo device : devices) {
+            if (device.getKey().getName().equals(keyName)) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    private static final Comparator<DeviceInfo> BY_KEY = new Comparator<DeviceInfo>() {
+        @Override
+        public int compare(DeviceInfo a, DeviceInfo b) {
+            return a.getKey().getName().compareTo(b.getKey().getName());
+        }
+    };
+
+    /**
+     * Same property names as the DeviceInfo entities.
+     */
+    private static Entity toEntity(Key key, List<DeviceInfo> devices) {
+        Collections.sort(devices, BY_KEY);
+        List<EmbeddedEntity> embedded = new ArrayList<EmbeddedEntity>(devices.size());
+        for (DeviceInfo device : devices) {
+            EmbeddedEntity e = new EmbeddedEntity();
+            e.setKey(device.getKey());
+            EntityMapper.writeDevice(device, e);
+            embedded.add(e);
+        }
+        Entity set = new Entity(key);
+        set.setUnindexedProperty(PROPERTY_DEVICES, embedded);
+        return set;
+    }
+
+    private static List<DeviceInfo> fromEntity(Entity set) {
+        @SuppressWarnings("unchecked")
+        List<EmbeddedEntity> embedded = (List<EmbeddedEntity>) set.getProperty(PROPERTY_DEVICES);
+        List<DeviceInfo> devices = new ArrayList<DeviceInfo>();
+        if (embedded == null) {
+            return devices; // empty lists are stored as null
+        }
+        for (EmbeddedEntity e : embedded) {
+            devices.add(EntityMapper.readDevice(e.getKey(), e));
+        }
+        return devices;
+    }
+}
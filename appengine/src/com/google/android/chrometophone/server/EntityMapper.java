@@ -0,0 +1,130 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyContainer;
+
+import java.util.Date;
+
+/**
+ * Maps DeviceInfo and C2PConfig to datastore entities, without JDO. Kinds
+ * and property names are the ones JDO uses, so both read the same data.
+ *
+ * Device entities keep deviceRegistrationID and registrationTimestamp
+ * indexed, like JDO did; type and gcm were never queried and are no longer
+ * indexed.
+ */
+public final class EntityMapper {
+    public static final String DEVICE_KIND = DeviceInfo.class.getSimpleName();
+    public static final String CONFIG_KIND = C2PConfig.class.getSimpleName();
+
+    static final String REGISTRATION_ID = "deviceRegistrationID";
+    static final String TYPE = "type";
+    static final String NAME = "name";
+    static final String REGISTRATION_TIMESTAMP = "registrationTimestamp";
+    static final String DEBUG = "debug";
+    static final String GCM = "gcm";
+
+    static final String AUTH_TOKEN = "authToken";
+    static final String LEGACY_CLIENT_LOGIN = "legacyClientLogin";
+    static final String C2DM_URL = "c2dmUrl";
+    static final String REGISTRATION_REFRESH_SECONDS = "registrationRefreshSeconds";
+    static final String USER_SENDS_PER_MINUTE = "userSendsPerMinute";
+    static final String USER_SEND_BURST = "userSendBurst";
+    static final String IP_SENDS_PER_MINUTE = "ipSendsPerMinute";
+    static final String IP_SEND_BURST = "ipSendBurst";
+
+    private EntityMapper() {
+    }
+
+    public static Key deviceKey(String keyName) {
+        return KeyFactory.createKey(DEVICE_KIND, keyName);
+    }
+
+    public static Key configKey() {
+        return KeyFactory.createKey(CONFIG_KIND, "default");
+    }
+
+    public static Entity toEntity(DeviceInfo device) {
+        Entity entity = new Entity(device.getKey());
+        writeDevice(device, entity);
+        entity.setProperty(REGISTRATION_ID, device.getDeviceRegistrationID());
+        entity.setProperty(REGISTRATION_TIMESTAMP, device.getRegistrationTimestamp());
+        return entity;
+    }
+
+    /**
+     * Device properties, all unindexed - also used for embedded entities.
+     */
+    static void writeDevice(DeviceInfo device, PropertyContainer entity) {
+        entity.setUnindexedProperty(REGISTRATION_ID, device.getDeviceRegistrationID());
+        entity.setUnindexedProperty(TYPE, device.getType());
+        entity.setUnindexedProperty(NAME, device.getName());
+        entity.setUnindexedProperty(REGISTRATION_TIMESTAMP, device.getRegistrationTimestamp());
+        entity.setUnindexedProperty(DEBUG, device.getDebug());
+        entity.setUnindexedProperty(GCM, device.getGcm());
+    }
+
+    public static DeviceInfo toDeviceInfo(Entity entity) {
+        return readDevice(entity.getKey(), entity);
+    }
+
+    static DeviceInfo readDevice(Key key, PropertyContainer entity) {
+        DeviceInfo device = new DeviceInfo(key);
+        device.setDeviceRegistrationID((String) entity.getProperty(REGISTRATION_ID));
+        device.setType((String) entity.getProperty(TYPE));
+        device.setName((String) entity.getProperty(NAME));
+        device.setRegistrationTimestamp((Date) entity.getProperty(REGISTRATION_TIMESTAMP));
+        Boolean debug = (Boolean) entity.getProperty(DEBUG);
+        device.setDebug(debug != null && debug);
+        device.setGcm((Boolean) entity.getProperty(GCM));
+        return device;
+    }
+
+    public static Entity toEntity(C2PConfig config) {
+        Entity entity = new Entity(configKey());
+        entity.setUnindexedProperty(AUTH_TOKEN, config.getAuthToken());
+        entity.setUnindexedProperty(LEGACY_CLIENT_LOGIN, config.getLegacyClientLogin());
+        entity.setUnindexedProperty(C2DM_URL, config.getC2dmUrl());
+        entity.setUnindexedProperty(REGISTRATION_REFRESH_SECONDS,
+                config.getRegistrationRefreshSeconds());
+        entity.setUnindexedProperty(USER_SENDS_PER_MINUTE, config.getUserSendsPerMinute());
+        entity.setUnindexedProperty(USER_SEND_BURST, config.getUserSendBurst());
+        entity.setUnindexedProperty(IP_SENDS_PER_MINUTE, config.getIpSendsPerMinute());
+        entity.setUnindexedProperty(IP_SEND_BURST, config.getIpSendBurst());
+        return entity;
+    }
+
+    public static C2PConfig toConfig(Entity entity) {
+        C2PConfig config = new C2PConfig();
+        config.setKey(entity.getKey());
+        config.setAuthToken((String) entity.getProperty(AUTH_TOKEN));
+        config.setLegacyClientLogin((String) entity.getProperty(LEGACY_CLIENT_LOGIN));
+        config.setC2dmUrl((String) entity.getProperty(C2DM_URL));
+        // Integers are stored as longs.
+        config.setRegistrationRefreshSeconds(
+                (Long) entity.getProperty(REGISTRATION_REFRESH_SECONDS));
+        config.setUserSendsPerMinute((Long) entity.getProperty(USER_SENDS_PER_MINUTE));
+        config.setUserSendBurst((Long) entity.getProperty(USER_SEND_BURST));
+        config.setIpSendsPerMinute((Long) entity.getProperty(IP_SENDS_PER_MINUTE));
+        config.setIpSendBurst((Long) entity.getProperty(IP_SEND_BURST));
+        return config;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Outbound HTTP for the push endpoints (C2DM and GCM).
+ *
+ * Connections are opened with bounded timeouts, and responses are always
+ * read to the end and closed - this is what allows HttpURLConnection to
+ * keep the connection alive and reuse it (and its TLS session) for the next
+ * request to the same host. Read buffers are reused per thread.
+ */
+public class HttpTransport {
+    static final int CONNECT_TIMEOUT_MS = 5000;
+    static final int READ_TIMEOUT_MS = 10000;
+
+    /**
+     * Idle connections kept per host - the JDK default is 5, too low for
+     * the send fan-out.
+     */
+    static final int MAX_KEEP_ALIVE_CONNECTIONS = 20;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private static HttpTransport instance;
+
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Retry-After of the last response on this thread, in ms (0 if none).
+     */
+    private final ThreadLocal<Long> retryAfter = new ThreadLocal<Long>() {
+        @Override
+        protected Long initialValue() {
+            return 0L;
+        }
+    };
+
+    private final ThreadLocal<ByteArrayOutputStream> bodies =
+            new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(BUFFER_SIZE);
+        }
+    };
+
+    public HttpTransport(int connectTimeoutMs, int readTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    public static synchronized HttpTransport get() {
+        if (instance == null) {
+            // Must be set before the first connection, the keep-alive cache
+            // reads it once.
+            if (System.getProperty("http.maxConnections") == null) {
+                System.setProperty("http.maxConnections",
+                        Integer.toString(MAX_KEEP_ALIVE_CONNECTIONS));
+            }
+            instance = new HttpTransport(CONNECT_TIMEOUT_MS, READ_TIMEOUT_MS);
+        }
+        return instance;
+    }
+
+    /**
+     * Replace the transport - for example with one that sends to another
+     * push endpoint. Must be called before the first send.
+     */
+    public static synchronized void set(HttpTransport transport) {
+        instance = transport;
+    }
+
+    public HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(connectTimeoutMs);
+        conn.setReadTimeout(readTimeoutMs);
+        conn.setUseCaches(false);
+        return conn;
+    }
+
+    /**
+     * Read the response body (or error body) to the end and close it, so the
+     * connection can be reused.
+     */
+    public String readBody(HttpURLConnection conn) throws IOException {
+        int status = conn.getResponseCode();
+        recordRetryAfter(conn);
+        InputStream is = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+        if (is == null) {
+            return "";
+        }
+        byte[] buffer = buffers.get();
+        ByteArrayOutputStream body = bodies.get();
+        body.reset();
+        try {
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+        return body.toString("UTF-8");
+    }
+
+    /**
+     * Save the Retry-After header of the response, for takeRetryAfterMs().
+     */
+    public void recordRetryAfter(HttpURLConnection conn) {
+        retryAfter.set(parseRetryAfter(conn.getHeaderField("Retry-After"),
+                System.currentTimeMillis()));
+    }
+
+    /**
+     * @return the Retry-After of the last response read on this thread, in ms,
+     * or 0 if it had none. Reset after the call.
+     */
+    public long takeRetryAfterMs() {
+        long res = retryAfter.get();
+        retryAfter.set(0L);
+        return res;
+    }
+
+    /**
+     * Retry-After is either a number of seconds or a HTTP date.
+     */
+    static long parseRetryAfter(String value, long now) {
+        if (value == null) {
+            return 0;
+        }
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // HTTP date
+        }
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, format.parse(value).getTime() - now);
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Discard the response, for callers that only need the status and headers.
+     */
+    public void discard(HttpURLConnection conn) {
+        try {
+            readBody(conn);
+        } catch (IOException e) {
+            // connection will not be reused
+        }
+    }
+}
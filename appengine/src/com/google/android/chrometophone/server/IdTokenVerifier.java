@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import org.jose4j.http.Get;
+import org.jose4j.jwk.HttpsJwks;
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.jwt.MalformedClaimException;
+import org.jose4j.jwt.consumer.InvalidJwtException;
+import org.jose4j.jwt.consumer.JwtConsumer;
+import org.jose4j.jwt.consumer.JwtConsumerBuilder;
+import org.jose4j.jwt.consumer.JwtContext;
+import org.jose4j.jwt.consumer.Validator;
+import org.jose4j.keys.resolvers.HttpsJwksVerificationKeyResolver;
+import org.jose4j.lang.JoseException;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Verifies Google ID tokens (JWT) locally.
+ *
+ * The signing keys are fetched from the Google JWKS endpoint and cached for
+ * the duration returned in the Cache-Control header (1h if missing). They're
+ * refreshed when expired or when a token is signed with an unknown key id, so
+ * a normal request doesn't need any network call.
+ */
+public class IdTokenVerifier {
+    private static final Logger log =
+            Logger.getLogger(IdTokenVerifier.class.getName());
+
+    static final String JWKS_URL = "https://www.googleapis.com/oauth2/v3/certs";
+
+    static final String[] ISSUERS = {
+            "accounts.google.com", "https://accounts.google.com"
+    };
+
+    private static final long DEFAULT_KEY_CACHE_SECONDS = 3600;
+    private static final int TIMEOUT_MS = 5000;
+    private static final int CLOCK_SKEW_SECONDS = 60;
+
+    private static IdTokenVerifier instance;
+
+    private final HttpsJwks jwks;
+    private final JwtConsumer consumer;
+
+    public IdTokenVerifier(String jwksUrl, String... audiences) {
+        Get get = new Get();
+        get.setConnectTimeout(TIMEOUT_MS);
+        get.setReadTimeout(TIMEOUT_MS);
+
+        jwks = new HttpsJwks(jwksUrl);
+        jwks.setSimpleHttpGet(get);
+        jwks.setDefaultCacheDuration(DEFAULT_KEY_CACHE_SECONDS);
+
+        consumer = new JwtConsumerBuilder()
+                .setVerificationKeyResolver(new HttpsJwksVerificationKeyResolver(jwks))
+                .setRequireExpirationTime()
+                .setAllowedClockSkewInSeconds(CLOCK_SKEW_SECONDS)
+                .setExpectedAudience(audiences)
+                // Google uses 2 forms of the issuer - checked below.
+                .setExpectedIssuer(false, null)
+                .registerValidator(new Validator() {
+                    @Override
+                    public String validate(JwtContext jwtContext) throws MalformedClaimException {
+                        String iss = jwtContext.getJwtClaims().getIssuer();
+                        for (String expected : ISSUERS) {
+                            if (expected.equals(iss)) {
+                                return null;
+                            }
+                        }
+                        return "Unexpected issuer " + iss;
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Verifier for the client IDs used by the app, shared by all requests.
+     */
+    public static synchronized IdTokenVerifier get() {
+        if (instance == null) {
+            instance = new IdTokenVerifier(JWKS_URL, RequestInfo.ID_TOKEN_AUDIENCES);
+        }
+        return instance;
+    }
+
+    /**
+     * Fetch the signing keys now rather than on the first token - used by
+     * the warmup request. Errors are logged, the keys will be fetched again
+     * when needed.
+     */
+    public void prefetchKeys() {
+        try {
+            jwks.refresh();
+        } catch (JoseException e) {
+            log.log(Level.WARNING, "Can't fetch ID token keys", e);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Can't fetch ID token keys", e);
+        }
+    }
+
+    /**
+     * Check signature, audience, issuer and expiration.
+     *
+     * @return the email in the token, or null if the token is not valid.
+     */
+    public String verify(String idToken) {
+        try {
+            JwtClaims claims = consumer.processToClaims(idToken);
+            Object email = claims.getClaimValue("email");
+            if (!(email instanceof String)) {
+                log.warning("ID token without email, sub=" + claims.getSubject());
+                return null;
+            }
+            return (String) email;
+        } catch (InvalidJwtException e) {
+            log.log(Level.WARNING, "Invalid id token", e);
+            return null;
+        } catch (MalformedClaimException e) {
+            log.log(Level.WARNING, "Invalid id token claims", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+import javax.jdo.Transaction;
+import javax.servlet.ServletContext;
+
+/**
+ * App Engine datastore backend, using JDO.
+ *
+ * Devices and their RegistrationIndex entries are written in cross-group
+ * transactions, so the index always matches the devices.
+ */
+public class JdoStorageBackend implements StorageBackend {
+    private static final Logger log = Logger.getLogger(JdoStorageBackend.class.getName());
+
+    private final PersistenceManagerFactory pmf;
+    private final DatastoreStorageBackend batch = new DatastoreStorageBackend();
+
+    public JdoStorageBackend(ServletContext ctx) {
+        this.pmf = getPMF(ctx);
+    }
+
+    /**
+     * Initialize PMF - we use a context attribute, so other servlets can
+     * be share the same instance. This is similar with a shared static
+     * field, but avoids dependencies.
+     */
+    static PersistenceManagerFactory getPMF(ServletContext ctx) {
+        PersistenceManagerFactory pmfFactory =
+                (PersistenceManagerFactory) ctx.getAttribute(
+                        PersistenceManagerFactory.class.getName());
+        if (pmfFactory == null) {
+            pmfFactory = JDOHelper
+                    .getPersistenceManagerFactory("transactions-optional");
+            ctx.setAttribute(
+                    PersistenceManagerFactory.class.getName(),
+                    pmfFactory);
+        }
+        return pmfFactory;
+    }
+
+    @Override
+    public C2PConfig loadConfig() {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Key key = KeyFactory.createKey(C2PConfig.class.getSimpleName(), "default");
+        try {
+            return pm.getObjectById(C2PConfig.class, key);
+        } catch (JDOObjectNotFoundException e) {
+            return null;
+        } finally {
+            pm.close();
+        }
+    }
+
+    @Override
+    public void saveConfig(C2PConfig cfg) {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try {
+            pm.makePersistent(cfg);
+        } finally {
+            pm.close();
+        }
+    }
+
+    @Override
+    public void updateRegistration(String userName, String regId, String canonicalRegId) {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try {
+            List<String> keyNames = userDeviceKeys(pm, userName, regId);
+            if (keyNames.isEmpty()) {
+                log.fine("No device for " + userName + " " + regId);
+                return;
+            }
+            Transaction tx = pm.currentTransaction();
+            try {
+                tx.begin();
+                for (String keyName : keyNames) {
+                    DeviceInfo device = getDevice(pm, keyName);
+                    if (device == null || !regId.equals(device.getDeviceRegistrationID())) {
+                        continue; // changed since the lookup
+                    }
+                    device.setDeviceRegistrationID(canonicalRegId);
+                    pm.makePersistent(device);
+                    indexRemove(pm, regId, keyName);
+                    indexAdd(pm, canonicalRegId, keyName);
+                }
+                tx.commit();
+            } finally {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+            }
+        } finally {
+            pm.close();
+        }
+    }
+
+    @Override
+    public void deleteRegistration(String userName, String regId) {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try {
+            List<String> keyNames = userDeviceKeys(pm, userName, regId);
+            Transaction tx = pm.currentTransaction();
+            try {
+                tx.begin();
+                for (String keyName : keyNames) {
+                    DeviceInfo device = getDevice(pm, keyName);
+                    if (device != null && regId.equals(device.getDeviceRegistrationID())) {
+                        pm.deletePersistent(device);
+                        // Keep looping in case of duplicates
+                    }
+                    indexRemove(pm, regId, keyName);
+                }
+                tx.commit();
+            } finally {
+                if (tx.isActive()) {
+                    tx.rollback();
+                }
+            }
+        } catch (Exception e) {
+            log.warning("Error unregistering device: " + e.getMessage());
+        } finally {
+            pm.close();
+        }
+    }
+
+    /**
+     * JDO deletes need the objects loaded one by one - use the batch calls
+     * of the datastore backend, which writes the same entities.
+     */
+    @Override
+    public void deleteDevices(List<DeviceInfo> devices) {
+        batch.deleteDevices(devices);
+    }
+
+    /**
+     * Read with the query of the datastore backend, like deleteDevices.
+     */
+    @Override
+    public List<DeviceInfo> listDevices(String afterKeyName, int limit) {
+        return batch.listDevices(afterKeyName, limit);
+    }
+
+    @Override
+    public List<String> findDeviceKeys(String regId) {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try {
+            RegistrationIndex index = getIndex(pm, regId);
+            return index == null ? new ArrayList<String>() :
+                    new ArrayList<String>(index.getDeviceKeys());
+        } finally {
+            pm.close();
+        }
+    }
+
+    /**
+     * Names of the user's device keys with the registration id. Devices
+     * saved before the index existed are found with the user's key range.
+     */
+    private static List<String> userDeviceKeys(PersistenceManager pm, String userName,
+            String regId) {
+        List<String> res = new ArrayList<String>();
+        RegistrationIndex index = getIndex(pm, regId);
+        if (index != null) {
+            for (String keyName : index.getDeviceKeys()) {
+                if (userName.equals(Storage.getUser(keyName))) {
+                    res.add(keyName);
+                }
+            }
+        }
+        if (res.isEmpty()) {
+            for (DeviceInfo device : getDeviceInfoForUser(pm, userName)) {
+                if (regId.equals(device.getDeviceRegistrationID())) {
+                    res.add(device.getKey().getName());
+                }
+            }
+        }
+        return res;
+    }
+
+    private static DeviceInfo getDevice(PersistenceManager pm, String keyName) {
+        try {
+            return pm.getObjectById(DeviceInfo.class,
+                    KeyFactory.createKey(DeviceInfo.class.getSimpleName(), keyName));
+        } catch (JDOObjectNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static RegistrationIndex getIndex(PersistenceManager pm, String regId) {
+        try {
+            return pm.getObjectById(RegistrationIndex.class, RegistrationIndex.createKey(regId));
+        } catch (JDOObjectNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static void indexAdd(PersistenceManager pm, String regId, String keyName) {
+        if (regId == null) {
+            return;
+        }
+        RegistrationIndex index = getIndex(pm, regId);
+        if (index == null) {
+            index = new RegistrationIndex(regId);
+        }
+        List<String> keyNames = new ArrayList<String>(index.getDeviceKeys());
+        if (!keyNames.contains(keyName)) {
+            keyNames.add(keyName);
+            index.setDeviceKeys(keyNames);
+            pm.makePersistent(index);
+        }
+    }
+
+    private static void indexRemove(PersistenceManager pm, String regId, String keyName) {
+        if (regId == null) {
+            return;
+        }
+        RegistrationIndex index = getIndex(pm, regId);
+        if (index == null) {
+            return;
+        }
+        List<String> keyNames = new ArrayList<String>(index.getDeviceKeys());
+        if (keyNames.remove(keyName)) {
+            if (keyNames.isEmpty()) {
+                pm.deletePersistent(index);
+            } else {
+                index.setDeviceKeys(keyNames);
+                pm.makePersistent(index);
+            }
+        }
+    }
+
+    /**
+     * Helper function - will query all registrations for a user.
+     */
+    public static List<DeviceInfo> getDeviceInfoForUser(PersistenceManager pm, String user) {
+        Query query = pm.newQuery(DeviceInfo.class);
+        query.setFilter("key >= '" +
+                user + "' && key < '" + user + "$'");
+        @SuppressWarnings("unchecked")
+        List<DeviceInfo> qresult = (List<DeviceInfo>) query.execute();
+        // Copy to array - we need to close the query
+        List<DeviceInfo> result = new ArrayList<DeviceInfo>();
+        for (DeviceInfo di : qresult) {
+            result.add(di);
+        }
+        query.closeAll();
+        return result;
+    }
+
+    @Override
+    public List<DeviceInfo> loadDevices(String userName) {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        List<DeviceInfo> devices = null;
+        try {
+             devices = getDeviceInfoForUser(pm,
+                    userName);
+            // cleanup for multi-device
+            if (devices.size() > 1) {
+                // Make sure there is no 'bare' registration
+                // Keys are sorted - check the first
+                DeviceInfo first = devices.get(0);
+                Key oldKey = first.getKey();
+                if (oldKey.toString().indexOf("#") < 0) {
+                    log.warning("Removing old-style key " + oldKey.toString());
+                    // multiple devices, first is old-style.
+                    devices.remove(0);
+                    pm.deletePersistent(first);
+                    indexRemove(pm, first.getDeviceRegistrationID(), oldKey.getName());
+                }
+            }
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Error loading registrations ", e);
+        } finally {
+            pm.close();
+        }
+
+        return devices;
+    }
+
+    @Override
+    public DeviceInfo saveDevice(DeviceInfo update, long refreshMs) {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        Transaction tx = pm.currentTransaction();
+        try {
+            tx.begin();
+            DeviceInfo device = null;
+            try {
+                device = pm.getObjectById(DeviceInfo.class, update.getKey());
+            } catch (JDOObjectNotFoundException e) { }
+            String oldRegId = null;
+            if (device == null) {
+                device = update;
+            } else if (!Storage.needsWrite(device, update, refreshMs)) {
+                Metrics.get().counter(Metrics.REGISTRATION_WRITES_SKIPPED).inc();
+                return device; // rolled back below - nothing was written
+            } else {
+                oldRegId = device.getDeviceRegistrationID();
+                device.setDeviceRegistrationID(update.getDeviceRegistrationID());
+                device.setType(update.getType());
+                device.setRegistrationTimestamp(update.getRegistrationTimestamp());
+                device.setName(update.getName());
+                device.setGcm(update.getGcm());
+            }
+            pm.makePersistent(device);
+
+            String keyName = device.getKey().getName();
+            String regId = device.getDeviceRegistrationID();
+            if (oldRegId != null && !oldRegId.equals(regId)) {
+                indexRemove(pm, oldRegId, keyName);
+            }
+            indexAdd(pm, regId, keyName);
+            tx.commit();
+            return device;
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            pm.close();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process stand-in for memcache - for tests and single instance
+ * deployments. Entries don't expire.
+ */
+public class LocalSharedCache implements SharedCache {
+    private final ConcurrentHashMap<String, Object> values =
+            new ConcurrentHashMap<String, Object>();
+
+    @Override
+    public Map<String, Object> getAll(Collection<String> keys) {
+        Map<String, Object> res = new HashMap<String, Object>();
+        for (String key : keys) {
+            Object value = values.get(key);
+            if (value != null) {
+                res.put(key, value);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void put(String key, Object value, int expirationSeconds) {
+        values.put(key, value);
+    }
+
+    @Override
+    public synchronized Long increment(String key, long delta, long initialValue) {
+        Object old = values.get(key);
+        long res = (old instanceof Long ? (Long) old : initialValue) + delta;
+        values.put(key, res);
+        return res;
+    }
+}
@@ -0,0 +1,693 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.datastore.KeyFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable backend for self-hosted deployments: an append-only log of
+ * records in a memory-mapped file, with an in-memory index of the offsets
+ * of the live records.
+ *
+ * Record format: payload length (int), CRC32 of type and payload (int),
+ * type (byte), payload. The length is written last, and the file is grown
+ * with zeros, so a zero length marks the end of the log. On open the log
+ * is replayed to rebuild the index; a bad length or CRC - a write torn by
+ * a crash - ends the log there.
+ *
+ * Reads decode records straight from the mapping, there is no other copy
+ * of the devices in memory. Superseded records are garbage; when there is
+ * more garbage than live data the live records are copied to a new file
+ * which atomically replaces the log.
+ *
+ * Offsets are ints - a log is limited to 2G, which is several million
+ * registrations.
+ */
+public class MappedLogStorageBackend implements StorageBackend {
+    private static final Logger log =
+            Logger.getLogger(MappedLogStorageBackend.class.getName());
+
+    static final String LOG_FILE = "registry.log";
+    static final String COMPACT_FILE = "registry.log.compact";
+
+    static final int INITIAL_SIZE = 16 << 20;
+    static final long COMPACT_MIN_GARBAGE = 16 << 20;
+
+    private static final int MAGIC = 0x43325031; // C2P1
+    private static final int HEADER_SIZE = 8; // magic, format version
+    private static final int FORMAT_VERSION = 1;
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    private static final byte TYPE_DEVICE = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final byte TYPE_CONFIG = 3;
+
+    private static final byte FLAG_DEBUG = 1;
+    private static final byte FLAG_GCM_SET = 2;
+    private static final byte FLAG_GCM = 4;
+
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File dir;
+    private final boolean syncWrites;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // All below guarded by lock.
+    private RandomAccessFile file;
+    private MappedByteBuffer buf;
+    private int end;
+    private long garbage;
+
+    /**
+     * user -> device key name -> record offset. Sorted like datastore keys.
+     */
+    private TreeMap<String, TreeMap<String, Integer>> users =
+            new TreeMap<String, TreeMap<String, Integer>>();
+
+    private final RegistrationIdIndex regIds = new RegistrationIdIndex();
+
+    private int configOffset = -1;
+
+    /**
+     * Scratch for encoding records - only used with the write lock held.
+     */
+    private ByteBuffer encodeBuffer = ByteBuffer.allocate(1024);
+
+    private final ThreadLocal<byte[]> decodeBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[1024];
+        }
+    };
+
+    /**
+     * @param dir directory for the log, created if missing.
+     * @param syncWrites force each write to disk before returning. Without
+     *     it a crash of the machine (not just the process) may lose the
+     *     last writes.
+     */
+    public MappedLogStorageBackend(File dir, boolean syncWrites) throws IOException {
+        this.dir = dir;
+        this.syncWrites = syncWrites;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        // Left by a crash during compaction - the log is still complete.
+        Files.deleteIfExists(new File(dir, COMPACT_FILE).toPath());
+        open();
+    }
+
+    private void open() throws IOException {
+        File logFile = new File(dir, LOG_FILE);
+        boolean created = !logFile.exists() || logFile.length() < HEADER_SIZE;
+        file = new RandomAccessFile(logFile, "rw");
+        long size = Math.max(file.length(), INITIAL_SIZE);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Log too large: " + logFile);
+        }
+        file.setLength(size);
+        buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (created) {
+            buf.putInt(0, MAGIC);
+            buf.putInt(4, FORMAT_VERSION);
+            buf.force();
+        } else if (buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Not a registry log: " + logFile);
+        }
+        recover();
+    }
+
+    /**
+     * Replay the log to rebuild the index.
+     */
+    private void recover() {
+        int pos = HEADER_SIZE;
+        int records = 0;
+        int capacity = buf.capacity();
+        while (pos + RECORD_HEADER_SIZE <= capacity) {
+            int length = buf.getInt(pos);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || length > capacity - pos - RECORD_HEADER_SIZE ||
+                    buf.getInt(pos + 4) != crc(buf, pos)) {
+                log.warning("Registry log truncated at " + pos + " of " + capacity +
+                        " - incomplete write");
+                // Clear the rest, so later appends can't run into old bytes.
+                for (int i = pos; i < capacity; i++) {
+                    buf.put(i, (byte) 0);
+                }
+                buf.force();
+                break;
+            }
+            apply(pos);
+            records++;
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        end = pos;
+        log.info("Registry log: " + records + " records, " + users.size() + " users, " +
+                end + " bytes, " + garbage + " garbage");
+    }
+
+    /**
+     * CRC of type and payload of the record at pos.
+     */
+    private int crc(ByteBuffer b, int pos) {
+        int n = b.getInt(pos) + 1;
+        byte[] bytes = decodeBuffers.get();
+        if (bytes.length < n) {
+            bytes = new byte[n];
+            decodeBuffers.set(bytes);
+        }
+        ByteBuffer record = b.duplicate();
+        record.position(pos + 8);
+        record.get(bytes, 0, n);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, n);
+        return (int) crc.getValue();
+    }
+
+    private int recordSize(int pos) {
+        return RECORD_HEADER_SIZE + buf.getInt(pos);
+    }
+
+    /**
+     * Update the index for the record at pos.
+     */
+    private void apply(int pos) {
+        byte type = buf.get(pos + 8);
+        if (type == TYPE_CONFIG) {
+            if (configOffset >= 0) {
+                garbage += recordSize(configOffset);
+            }
+            configOffset = pos;
+            return;
+        }
+        if (type != TYPE_DEVICE && type != TYPE_DELETE) {
+            log.warning("Unknown record type " + type + " at " + pos);
+            return;
+        }
+
+        ByteBuffer in = reader(pos);
+        String keyName = readString(in);
+        String user = Storage.getUser(keyName);
+        TreeMap<String, Integer> devices = users.get(user);
+        Integer old = devices == null ? null : devices.get(keyName);
+        if (old != null) {
+            garbage += recordSize(old);
+            String oldRegId = readString(reader(old), 1);
+            if (oldRegId != null) {
+                regIds.remove(oldRegId, keyName);
+            }
+        }
+
+        if (type == TYPE_DEVICE) {
+            if (devices == null) {
+                devices = new TreeMap<String, Integer>();
+                users.put(user, devices);
+            }
+            devices.put(keyName, pos);
+            String regId = readString(in);
+            if (regId != null) {
+                regIds.add(regId, keyName);
+            }
+        } else {
+            if (old != null) {
+                devices.remove(keyName);
+                if (devices.isEmpty()) {
+                    users.remove(user);
+                }
+            }
+            // Only needed until the device record is compacted away.
+            garbage += recordSize(pos);
+        }
+    }
+
+    /**
+     * Buffer positioned at the payload of the record at pos.
+     */
+    private ByteBuffer reader(int pos) {
+        ByteBuffer in = buf.duplicate();
+        in.position(pos + RECORD_HEADER_SIZE);
+        return in;
+    }
+
+    private String readString(ByteBuffer in) {
+        int length = in.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = decodeBuffers.get();
+        if (bytes.length < length) {
+            bytes = new byte[length];
+            decodeBuffers.set(bytes);
+        }
+        in.get(bytes, 0, length);
+        return new String(bytes, 0, length, UTF_8);
+    }
+
+    /**
+     * Read the n-th string, skipping the ones before.
+     */
+    private String readString(ByteBuffer in, int n) {
+        for (int i = 0; i < n; i++) {
+            int length = in.getShort();
+            if (length > 0) {
+                in.position(in.position() + length);
+            }
+        }
+        return readString(in);
+    }
+
+    private DeviceInfo readDevice(int pos) {
+        ByteBuffer in = reader(pos);
+        DeviceInfo device = new DeviceInfo(KeyFactory.createKey(
+                DeviceInfo.class.getSimpleName(), readString(in)));
+        device.setDeviceRegistrationID(readString(in));
+        device.setType(readString(in));
+        device.setName(readString(in));
+        long timestamp = in.getLong();
+        device.setRegistrationTimestamp(timestamp == NO_TIMESTAMP ? null : new Date(timestamp));
+        byte flags = in.get();
+        device.setDebug((flags & FLAG_DEBUG) != 0);
+        device.setGcm((flags & FLAG_GCM_SET) == 0 ? null : (flags & FLAG_GCM) != 0);
+        return device;
+    }
+
+    // Writing - all with the write lock held.
+
+    private ByteBuffer startRecord(byte type) {
+        encodeBuffer.clear();
+        encodeBuffer.position(RECORD_HEADER_SIZE - 1);
+        encodeBuffer.put(type);
+        return encodeBuffer;
+    }
+
+    private void writeString(String s) {
+        if (s == null) {
+            ensureEncodeCapacity(2);
+            encodeBuffer.putShort((short) -1);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF_8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Value too long: " + bytes.length);
+        }
+        ensureEncodeCapacity(2 + bytes.length);
+        encodeBuffer.putShort((short) bytes.length);
+        encodeBuffer.put(bytes);
+    }
+
+    private void ensureEncodeCapacity(int n) {
+        if (encodeBuffer.remaining() < n) {
+            ByteBuffer bigger = ByteBuffer.allocate(
+                    Math.max(encodeBuffer.capacity() * 2, encodeBuffer.position() + n));
+            encodeBuffer.flip();
+            bigger.put(encodeBuffer);
+            encodeBuffer = bigger;
+        }
+    }
+
+    /**
+     * Append the record in encodeBuffer and index it.
+     */
+    private void append() throws IOException {
+        int size = encodeBuffer.position();
+        int length = size - RECORD_HEADER_SIZE;
+        // Room for the record and the zero length after it.
+        if (end + size + 4 > buf.capacity()) {
+            grow(size + 4);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(encodeBuffer.array(), 8, size - 8);
+        encodeBuffer.putInt(4, (int) crc.getValue());
+
+        ByteBuffer out = buf.duplicate();
+        out.position(end + 4);
+        out.put(encodeBuffer.array(), 4, size - 4);
+        // Length last - the record is complete once it's set.
+        buf.putInt(end, length);
+        if (syncWrites) {
+            buf.force();
+        }
+        int pos = end;
+        end += size;
+        apply(pos);
+    }
+
+    private void grow(int needed) throws IOException {
+        long size = Math.max((long) buf.capacity() * 2, (long) end + needed);
+        if (size > Integer.MAX_VALUE) {
+            size = Integer.MAX_VALUE;
+            if (end + needed > size) {
+                throw new IOException("Registry log full");
+            }
+        }
+        buf.force();
+        file.setLength(size);
+        buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void afterWrite() throws IOException {
+        if (garbage > COMPACT_MIN_GARBAGE && garbage > end - HEADER_SIZE - garbage) {
+            compact();
+        }
+    }
+
+    /**
+     * Copy the live records to a new log, which replaces the current one.
+     */
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            long start = System.currentTimeMillis();
+            int live = (int) (end - HEADER_SIZE - garbage);
+            long size = Math.max(INITIAL_SIZE, Math.min(Integer.MAX_VALUE, 2L * live));
+            File compactFile = new File(dir, COMPACT_FILE);
+            RandomAccessFile newFile = new RandomAccessFile(compactFile, "rw");
+            MappedByteBuffer out;
+            try {
+                newFile.setLength(size);
+                out = newFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } catch (IOException e) {
+                newFile.close();
+                throw e;
+            }
+            out.putInt(0, MAGIC);
+            out.putInt(4, FORMAT_VERSION);
+            out.position(HEADER_SIZE);
+
+            // Records are copied as they are, CRC included.
+            TreeMap<String, TreeMap<String, Integer>> newUsers =
+                    new TreeMap<String, TreeMap<String, Integer>>();
+            int newConfigOffset = -1;
+            if (configOffset >= 0) {
+                newConfigOffset = copyRecord(configOffset, out);
+            }
+            for (Map.Entry<String, TreeMap<String, Integer>> e : users.entrySet()) {
+                TreeMap<String, Integer> devices = new TreeMap<String, Integer>();
+                for (Map.Entry<String, Integer> d : e.getValue().entrySet()) {
+                    devices.put(d.getKey(), copyRecord(d.getValue(), out));
+                }
+                newUsers.put(e.getKey(), devices);
+            }
+            int newEnd = out.position();
+            out.force();
+
+            Files.move(compactFile.toPath(), new File(dir, LOG_FILE).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            file.close();
+            file = newFile;
+            buf = out;
+            log.info("Compacted registry log from " + end + " to " + newEnd + " bytes in " +
+                    (System.currentTimeMillis() - start) + " ms");
+            end = newEnd;
+            garbage = 0;
+            users = newUsers;
+            configOffset = newConfigOffset;
+            // regIds map to key names, not offsets - unchanged.
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int copyRecord(int pos, ByteBuffer out) {
+        int newPos = out.position();
+        ByteBuffer record = buf.duplicate();
+        record.limit(pos + recordSize(pos));
+        record.position(pos);
+        out.put(record);
+        return newPos;
+    }
+
+    /**
+     * Flush and close the log. The backend can't be used after this.
+     */
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            buf.force();
+            file.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // StorageBackend
+
+    @Override
+    public C2PConfig loadConfig() {
+        lock.readLock().lock();
+        try {
+            if (configOffset < 0) {
+                return null;
+            }
+            ByteBuffer in = reader(configOffset);
+            C2PConfig config = new C2PConfig();
+            config.setKey(KeyFactory.createKey(C2PConfig.class.getSimpleName(), "default"));
+            config.setAuthToken(readString(in));
+            config.setLegacyClientLogin(readString(in));
+            config.setRegistrationRefreshSeconds(in.getLong());
+            config.setUserSendsPerMinute(in.getLong());
+            config.setUserSendBurst(in.getLong());
+            config.setIpSendsPerMinute(in.getLong());
+            config.setIpSendBurst(in.getLong());
+            return config;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void saveConfig(C2PConfig config) {
+        lock.writeLock().lock();
+        try {
+            startRecord(TYPE_CONFIG);
+            writeString(config.getAuthToken());
+            writeString(config.getLegacyClientLogin());
+            ensureEncodeCapacity(40);
+            encodeBuffer.putLong(config.getRegistrationRefreshSeconds());
+            encodeBuffer.putLong(config.getUserSendsPerMinute());
+            encodeBuffer.putLong(config.getUserSendBurst());
+            encodeBuffer.putLong(config.getIpSendsPerMinute());
+            encodeBuffer.putLong(config.getIpSendBurst());
+            append();
+            afterWrite();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write registry log", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<DeviceInfo> loadDevices(String userName) {
+        lock.readLock().lock();
+        try {
+            TreeMap<String, Integer> devices = users.get(userName);
+            if (devices == null) {
+                return new ArrayList<DeviceInfo>();
+            }
+            List<DeviceInfo> res = new ArrayList<DeviceInfo>(devices.size());
+            for (Integer pos : devices.values()) {
+                res.add(readDevice(pos));
+            }
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<DeviceInfo> listDevices(String afterKeyName, int limit) {
+        lock.readLock().lock();
+        try {
+            List<DeviceInfo> res = new ArrayList<DeviceInfo>();
+            Map<String, TreeMap<String, Integer>> from = afterKeyName == null ? users :
+                    users.tailMap(Storage.getUser(afterKeyName), true);
+            for (TreeMap<String, Integer> devices : from.values()) {
+                Map<String, Integer> page = afterKeyName == null ? devices :
+                        devices.tailMap(afterKeyName, false);
+                for (Integer pos : page.values()) {
+                    if (res.size() == limit) {
+                        return res;
+                    }
+                    res.add(readDevice(pos));
+                }
+            }
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public DeviceInfo saveDevice(DeviceInfo device, long refreshMs) {
+        lock.writeLock().lock();
+        try {
+            String keyName = device.getKey().getName();
+            TreeMap<String, Integer> devices = users.get(Storage.getUser(keyName));
+            Integer old = devices == null ? null : devices.get(keyName);
+            if (old != null) {
+                DeviceInfo stored = readDevice(old);
+                if (!Storage.needsWrite(stored, device, refreshMs)) {
+                    Metrics.get().counter(Metrics.REGISTRATION_WRITES_SKIPPED).inc();
+                    return stored;
+                }
+                device.setDebug(stored.getDebug());
+            }
+            writeDevice(device);
+            afterWrite();
+            return device;
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write registry log", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void writeDevice(DeviceInfo device) throws IOException {
+        startRecord(TYPE_DEVICE);
+        writeString(device.getKey().getName());
+        writeString(device.getDeviceRegistrationID());
+        writeString(device.getType());
+        writeString(device.getName());
+        ensureEncodeCapacity(9);
+        Date timestamp = device.getRegistrationTimestamp();
+        encodeBuffer.putLong(timestamp == null ? NO_TIMESTAMP : timestamp.getTime());
+        byte flags = 0;
+        if (device.getDebug()) {
+            flags |= FLAG_DEBUG;
+        }
+        if (device.getGcm() != null) {
+            flags |= FLAG_GCM_SET;
+            if (device.getGcm()) {
+                flags |= FLAG_GCM;
+            }
+        }
+        encodeBuffer.put(flags);
+        append();
+    }
+
+    @Override
+    public void deleteRegistration(String userName, String regId) {
+        lock.writeLock().lock();
+        try {
+            TreeMap<String, Integer> devices = users.get(userName);
+            if (devices == null) {
+                return;
+            }
+            // Keep looping in case of duplicates
+            List<String> keyNames = new ArrayList<String>();
+            for (Map.Entry<String, Integer> e : devices.entrySet()) {
+                if (regId.equals(readString(reader(e.getValue()), 1))) {
+                    keyNames.add(e.getKey());
+                }
+            }
+            for (String keyName : keyNames) {
+                startRecord(TYPE_DELETE);
+                writeString(keyName);
+                append();
+            }
+            afterWrite();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write registry log", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteDevices(List<DeviceInfo> devices) {
+        lock.writeLock().lock();
+        try {
+            for (DeviceInfo expected : devices) {
+                String keyName = expected.getKey().getName();
+                TreeMap<String, Integer> userDevices = users.get(Storage.getUser(keyName));
+                Integer pos = userDevices == null ? null : userDevices.get(keyName);
+                if (pos == null) {
+                    continue;
+                }
+                String regId = readString(reader(pos), 1);
+                if (regId == null ? expected.getDeviceRegistrationID() != null :
+                        !regId.equals(expected.getDeviceRegistrationID())) {
+                    continue;
+                }
+                startRecord(TYPE_DELETE);
+                writeString(keyName);
+                append();
+            }
+            afterWrite();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write registry log", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void updateRegistration(String userName, String regId, String canonicalRegId) {
+        lock.writeLock().lock();
+        try {
+            for (String keyName : regIds.get(regId)) {
+                if (!userName.equals(Storage.getUser(keyName))) {
+                    continue;
+                }
+                DeviceInfo device = readDevice(users.get(userName).get(keyName));
+                device.setDeviceRegistrationID(canonicalRegId);
+                writeDevice(device);
+            }
+            afterWrite();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write registry log", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> findDeviceKeys(String regId) {
+        lock.readLock().lock();
+        try {
+            return regIds.get(regId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
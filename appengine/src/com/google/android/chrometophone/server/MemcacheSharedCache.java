@@ -0,0 +1,51 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * SharedCache backed by the App Engine memcache. The default error handler
+ * logs and treats errors as misses.
+ */
+public class MemcacheSharedCache implements SharedCache {
+    private final MemcacheService memcache;
+
+    public MemcacheSharedCache(String namespace) {
+        memcache = MemcacheServiceFactory.getMemcacheService(namespace);
+    }
+
+    @Override
+    public Map<String, Object> getAll(Collection<String> keys) {
+        return memcache.getAll(keys);
+    }
+
+    @Override
+    public void put(String key, Object value, int expirationSeconds) {
+        memcache.put(key, value, Expiration.byDeltaSeconds(expirationSeconds));
+    }
+
+    @Override
+    public Long increment(String key, long delta, long initialValue) {
+        return memcache.increment(key, delta, initialValue);
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory backend, for load tests and profiling without the datastore.
+ * Nothing is persisted.
+ *
+ * Users are spread over lock stripes, each holding the devices of its users
+ * sorted by key, and a shared index of the registration ids. Devices are
+ * copied in and out, so callers can't modify the stored state.
+ */
+public class MemoryStorageBackend implements StorageBackend {
+    private static final int STRIPES = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * Locked after the stripe, so it's updated atomically with the devices.
+     */
+    private final RegistrationIdIndex regIds = new RegistrationIdIndex();
+
+    private volatile C2PConfig config;
+
+    private static class Stripe {
+        final TreeMap<String, TreeMap<String, DeviceInfo>> users =
+                new TreeMap<String, TreeMap<String, DeviceInfo>>();
+    }
+
+    public MemoryStorageBackend() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripe(String user) {
+        int h = user.hashCode();
+        h ^= h >>> 16;
+        return stripes[h & (STRIPES - 1)];
+    }
+
+    @Override
+    public C2PConfig loadConfig() {
+        return config;
+    }
+
+    @Override
+    public void saveConfig(C2PConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public List<DeviceInfo> loadDevices(String userName) {
+        Stripe stripe = stripe(userName);
+        synchronized (stripe) {
+            TreeMap<String, DeviceInfo> devices = stripe.users.get(userName);
+            List<DeviceInfo> res = new ArrayList<DeviceInfo>(
+                    devices == null ? 0 : devices.size());
+            if (devices != null) {
+                for (DeviceInfo device : devices.values()) {
+                    res.add(device.copy());
+                }
+            }
+            return res;
+        }
+    }
+
+    @Override
+    public DeviceInfo saveDevice(DeviceInfo update, long refreshMs) {
+        String keyName = update.getKey().getName();
+        String user = Storage.getUser(keyName);
+        DeviceInfo device = update.copy();
+        Stripe stripe = stripe(user);
+        synchronized (stripe) {
+            TreeMap<String, DeviceInfo> devices = stripe.users.get(user);
+            if (devices == null) {
+                devices = new TreeMap<String, DeviceInfo>();
+                stripe.users.put(user, devices);
+            }
+            DeviceInfo old = devices.get(keyName);
+            if (old != null && !Storage.needsWrite(old, update, refreshMs)) {
+                Metrics.get().counter(Metrics.REGISTRATION_WRITES_SKIPPED).inc();
+                return old.copy();
+            }
+            devices.put(keyName, device);
+            synchronized (regIds) {
+                if (old != null) {
+                    device.setDebug(old.getDebug());
+                    if (old.getDeviceRegistrationID() != null) {
+                        regIds.remove(old.getDeviceRegistrationID(), keyName);
+                    }
+                }
+                if (device.getDeviceRegistrationID() != null) {
+                    regIds.add(device.getDeviceRegistrationID(), keyName);
+                }
+            }
+            return device.copy();
+        }
+    }
+
+    @Override
+    public void deleteRegistration(String userName, String regId) {
+        Stripe stripe = stripe(userName);
+        synchronized (stripe) {
+            TreeMap<String, DeviceInfo> devices = stripe.users.get(userName);
+            if (devices == null) {
+                return;
+            }
+            for (DeviceInfo device : new ArrayList<DeviceInfo>(devices.values())) {
+                if (regId.equals(device.getDeviceRegistrationID())) {
+                    String keyName = device.getKey().getName();
+                    devices.remove(keyName);
+                    synchronized (regIds) {
+                        regIds.remove(regId, keyName);
+                    }
+                }
+            }
+            if (devices.isEmpty()) {
+                stripe.users.remove(userName);
+            }
+        }
+    }
+
+    @Override
+    public void deleteDevices(List<DeviceInfo> devices) {
+        for (DeviceInfo expected : devices) {
+            String keyName = expected.getKey().getName();
+            String user = Storage.getUser(keyName);
+            Stripe stripe = stripe(user);
+            synchronized (stripe) {
+                TreeMap<String, DeviceInfo> userDevices = stripe.users.get(user);
+                DeviceInfo device = userDevices == null ? null : userDevices.get(keyName);
+                if (device == null || !equal(device.getDeviceRegistrationID(),
+                        expected.getDeviceRegistrationID())) {
+                    continue;
+                }
+                userDevices.remove(keyName);
+                if (userDevices.isEmpty()) {
+                    stripe.users.remove(user);
+                }
+                if (device.getDeviceRegistrationID() != null) {
+                    synchronized (regIds) {
+                        regIds.remove(device.getDeviceRegistrationID(), keyName);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public void updateRegistration(String userName, String regId, String canonicalRegId) {
+        Stripe stripe = stripe(userName);
+        synchronized (stripe) {
+            TreeMap<String, DeviceInfo> devices = stripe.users.get(userName);
+            if (devices == null) {
+                return;
+            }
+            synchronized (regIds) {
+                for (String keyName : regIds.get(regId)) {
+                    DeviceInfo device = devices.get(keyName);
+                    if (device == null) {
+                        continue; // other user
+                    }
+                    device.setDeviceRegistrationID(canonicalRegId);
+                    regIds.remove(regId, keyName);
+                    regIds.add(canonicalRegId, keyName);
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<String> findDeviceKeys(String regId) {
+        synchronized (regIds) {
+            return regIds.get(regId);
+        }
+    }
+
+    /**
+     * The first 'limit' devices of each stripe, merged.
+     */
+    @Override
+    public List<DeviceInfo> listDevices(String afterKeyName, int limit) {
+        TreeMap<String, DeviceInfo> merged = new TreeMap<String, DeviceInfo>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                addPage(stripe, afterKeyName, limit, merged);
+            }
+        }
+        List<DeviceInfo> res = new ArrayList<DeviceInfo>(Math.min(limit, merged.size()));
+        for (DeviceInfo device : merged.values()) {
+            if (res.size() == limit) {
+                break;
+            }
+            res.add(device);
+        }
+        return res;
+    }
+
+    private static void addPage(Stripe stripe, String afterKeyName, int limit,
+                                Map<String, DeviceInfo> res) {
+        Map<String, TreeMap<String, DeviceInfo>> from = afterKeyName == null ?
+                stripe.users : stripe.users.tailMap(Storage.getUser(afterKeyName), true);
+        int count = 0;
+        for (TreeMap<String, DeviceInfo> devices : from.values()) {
+            Map<String, DeviceInfo> page = afterKeyName == null ? devices :
+                    devices.tailMap(afterKeyName, false);
+            for (DeviceInfo device : page.values()) {
+                if (count == limit) {
+                    return;
+                }
+                res.put(device.getKey().getName(), device.copy());
+                count++;
+            }
+        }
+    }
+}
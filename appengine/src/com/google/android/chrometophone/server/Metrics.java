@@ -0,0 +1,301 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for this instance, served by DebugServlet.
+ *
+ * Updates are a few atomic increments - no locks, no allocation - so they
+ * can be used on every request.
+ */
+public class Metrics {
+
+    public static final String AUTH_MS = "auth_ms";
+    public static final String AUTH_FAILURES = "auth_failures";
+    public static final String DEVICE_LOAD_MS = "device_load_ms";
+    public static final String DEVICE_LOAD_DATASTORE_MS = "device_load_datastore_ms";
+    public static final String SEND_REQUEST_MS = "send_request_ms";
+    public static final String SEND_GCM_MS = "send_gcm_ms";
+    public static final String SEND_GCM_ERRORS = "send_gcm_errors";
+    public static final String SEND_C2DM_MS = "send_c2dm_ms";
+    public static final String SEND_C2DM_ERRORS = "send_c2dm_errors";
+    public static final String SEND_CHANNEL_MS = "send_channel_ms";
+    public static final String SEND_CHANNEL_ERRORS = "send_channel_errors";
+    public static final String SEND_RETRIES = "send_retries_scheduled";
+    public static final String SEND_DUPLICATES = "send_duplicates_suppressed";
+    public static final String SEND_RATE_LIMITED = "send_rate_limited";
+    public static final String CANONICAL_ID_UPDATES = "canonical_id_updates";
+    public static final String REGISTRATIONS_PRUNED = "registrations_pruned";
+    public static final String REFRESH_PINGS = "refresh_pings_sent";
+    public static final String REGISTRY_ACTIONS_QUEUED = "registry_actions_queued";
+    public static final String REGISTRY_ACTIONS_APPLIED = "registry_actions_applied";
+    public static final String REGISTRATION_WRITES_SKIPPED = "registration_writes_skipped";
+    public static final String DEVICE_CACHE_L1_HITS = "device_cache_l1_hits";
+    public static final String DEVICE_CACHE_L2_HITS = "device_cache_l2_hits";
+    public static final String DEVICE_CACHE_MISSES = "device_cache_misses";
+    public static final String DEVICE_CACHE_INVALIDATIONS = "device_cache_invalidations";
+    public static final String WARMUP_MS = "warmup_ms";
+    public static final String FIRST_REQUEST_MS = "startup_to_first_request_ms";
+
+    private static final Metrics instance = new Metrics();
+
+    /**
+     * Upper bounds of the histogram buckets, in ms. The last bucket has no
+     * upper bound.
+     */
+    static final long[] BUCKETS_MS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000
+    };
+
+    private final ConcurrentHashMap<String, Counter> counters =
+            new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentHashMap<String, Histogram> histograms =
+            new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentHashMap<String, Gauge> gauges =
+            new ConcurrentHashMap<String, Gauge>();
+
+    private final AtomicLong startedAt = new AtomicLong();
+    private final AtomicLong firstRequestAt = new AtomicLong();
+
+    /**
+     * Updates on threads with this set go to throwaway counters - used for
+     * the synthetic requests of the warmup.
+     */
+    private final ThreadLocal<Boolean> muted = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return Boolean.FALSE;
+        }
+    };
+
+    public static Metrics get() {
+        return instance;
+    }
+
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Value computed when the metrics are read, like the requests in
+     * flight. Totals that only go up should be counters.
+     */
+    public interface Gauge {
+        long get();
+    }
+
+    /**
+     * Latency histogram with fixed exponential buckets.
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_MS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumMs = new AtomicLong();
+
+        public void observe(long ms) {
+            int i = 0;
+            while (i < BUCKETS_MS.length && ms > BUCKETS_MS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            count.incrementAndGet();
+            sumMs.addAndGet(ms);
+        }
+
+        /**
+         * @param startNanos System.nanoTime() at the start of the operation.
+         */
+        public void observeSince(long startNanos) {
+            observe((System.nanoTime() - startNanos) / 1000000);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSumMs() {
+            return sumMs.get();
+        }
+
+        /**
+         * Upper bound of the bucket holding the given quantile - or the
+         * largest bound if it falls in the last bucket.
+         */
+        public long quantile(double q) {
+            long total = 0;
+            long[] snapshot = new long[buckets.length()];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS_MS.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return BUCKETS_MS[i];
+                }
+            }
+            return BUCKETS_MS[BUCKETS_MS.length - 1];
+        }
+
+        long getBucket(int i) {
+            return buckets.get(i);
+        }
+    }
+
+    /**
+     * Start of this instance, for FIRST_REQUEST_MS. Only the first call
+     * counts.
+     */
+    public void instanceStarted() {
+        startedAt.compareAndSet(0, System.currentTimeMillis());
+    }
+
+    /**
+     * Called for each user request - the first one sets FIRST_REQUEST_MS.
+     */
+    public void requestStarted() {
+        long started = startedAt.get();
+        if (started == 0 || firstRequestAt.get() != 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (firstRequestAt.compareAndSet(0, now)) {
+            final long ms = now - started;
+            gauge(FIRST_REQUEST_MS, new Gauge() {
+                @Override
+                public long get() {
+                    return ms;
+                }
+            });
+        }
+    }
+
+    /**
+     * Discard the updates made by this thread until called with false.
+     */
+    public void mute(boolean mute) {
+        muted.set(mute);
+    }
+
+    public Counter counter(String name) {
+        if (muted.get()) {
+            return new Counter();
+        }
+        Counter c = counters.get(name);
+        if (c == null) {
+            counters.putIfAbsent(name, new Counter());
+            c = counters.get(name);
+        }
+        return c;
+    }
+
+    public Histogram histogram(String name) {
+        if (muted.get()) {
+            return new Histogram();
+        }
+        Histogram h = histograms.get(name);
+        if (h == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            h = histograms.get(name);
+        }
+        return h;
+    }
+
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void writeJson(Writer out) throws IOException {
+        JSONObject res = new JSONObject();
+        for (Map.Entry<String, Counter> e : new TreeMap<String, Counter>(counters).entrySet()) {
+            res.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> e : new TreeMap<String, Gauge>(gauges).entrySet()) {
+            res.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> e :
+                new TreeMap<String, Histogram>(histograms).entrySet()) {
+            Histogram h = e.getValue();
+            JSONObject hjson = new JSONObject();
+            hjson.put("count", h.getCount());
+            hjson.put("sum_ms", h.getSumMs());
+            hjson.put("p50", h.quantile(0.5));
+            hjson.put("p90", h.quantile(0.9));
+            hjson.put("p99", h.quantile(0.99));
+            res.put(e.getKey(), hjson);
+        }
+        res.writeJSONString(out);
+    }
+
+    /**
+     * Prometheus text exposition format.
+     */
+    public void writeText(PrintWriter out) {
+        for (Map.Entry<String, Counter> e : new TreeMap<String, Counter>(counters).entrySet()) {
+            out.println("# TYPE " + e.getKey() + " counter");
+            out.println(e.getKey() + " " + e.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> e : new TreeMap<String, Gauge>(gauges).entrySet()) {
+            out.println("# TYPE " + e.getKey() + " gauge");
+            out.println(e.getKey() + " " + e.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> e :
+                new TreeMap<String, Histogram>(histograms).entrySet()) {
+            String name = e.getKey();
+            Histogram h = e.getValue();
+            out.println("# TYPE " + name + " histogram");
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS_MS.length; i++) {
+                cumulative += h.getBucket(i);
+                out.println(name + "_bucket{le=\"" + BUCKETS_MS[i] + "\"} " + cumulative);
+            }
+            cumulative += h.getBucket(BUCKETS_MS.length);
+            out.println(name + "_bucket{le=\"+Inf\"} " + cumulative);
+            out.println(name + "_sum " + h.getSumMs());
+            out.println(name + "_count " + h.getCount());
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Transport that doesn't send anything: every push request succeeds, with
+ * one message id per registration id for GCM and an 'id=' line for C2DM.
+ *
+ * Used by the warmup request, and for load tests of the standalone server
+ * (c2p.transport).
+ */
+public class NoopTransport extends HttpTransport {
+
+    public NoopTransport() {
+        super(CONNECT_TIMEOUT_MS, READ_TIMEOUT_MS);
+    }
+
+    @Override
+    public HttpURLConnection open(String url) throws IOException {
+        return new Connection(new URL(url));
+    }
+
+    private static class Connection extends HttpURLConnection {
+        private final ByteArrayOutputStream request = new ByteArrayOutputStream();
+        private byte[] response;
+
+        Connection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public void connect() {
+            connected = true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return request;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            if (response == null) {
+                response = respond(request.toString("UTF-8")).getBytes("UTF-8");
+            }
+            return HTTP_OK;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            getResponseCode();
+            return new ByteArrayInputStream(response);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static String respond(String body) {
+            if (!body.startsWith("{")) {
+                // C2DM form post
+                return "id=0:noop";
+            }
+            int count = 1;
+            try {
+                Object ids = ((JSONObject) new JSONParser().parse(body)).get("registration_ids");
+                if (ids instanceof JSONArray) {
+                    count = ((JSONArray) ids).size();
+                }
+            } catch (ParseException e) {
+                // single result
+            }
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < count; i++) {
+                JSONObject result = new JSONObject();
+                result.put("message_id", "0:noop" + i);
+                results.add(result);
+            }
+            JSONObject res = new JSONObject();
+            res.put("multicast_id", 1);
+            res.put("success", count);
+            res.put("failure", 0);
+            res.put("canonical_ids", 0);
+            res.put("results", results);
+            return res.toJSONString();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.android.gcm.server.Sender;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * GCM Sender using the shared HttpTransport - timeouts and keep-alive
+ * connections. Sender reads each response to the end, which returns the
+ * connection to the pool.
+ *
+ * Only the sendNoRetry methods should be used on the request path, the
+ * others sleep between retries - see RetryScheduler.
+ */
+public class PooledSender extends Sender {
+    private final HttpTransport transport;
+
+    public PooledSender(String key, HttpTransport transport) {
+        super(key);
+        this.transport = transport;
+    }
+
+    @Override
+    protected HttpURLConnection getConnection(String url) throws IOException {
+        return transport.open(url);
+    }
+
+    /**
+     * Keep the Retry-After header of 5xx responses - see
+     * HttpTransport.takeRetryAfterMs().
+     */
+    @Override
+    protected HttpURLConnection post(String url, String contentType, String body)
+            throws IOException {
+        HttpURLConnection conn = super.post(url, contentType, body);
+        transport.recordRetryAfter(conn);
+        return conn;
+    }
+}
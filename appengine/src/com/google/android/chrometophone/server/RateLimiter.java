@@ -0,0 +1,198 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token buckets for the senders of links, keyed by user or client IP.
+ *
+ * Buckets hold up to 'burst' tokens and get 'perMinute' tokens per minute;
+ * each send takes one. Limits are passed with each call, so config changes
+ * apply right away.
+ *
+ * Buckets are kept in a fixed size open addressing table without locks:
+ * the fingerprint and the bucket state (last update time and tokens) are
+ * each a single long, updated with compare-and-set. A bucket that had time
+ * to refill completely is the same as a new one, so its slot can be reused.
+ * When the probed slots are all in use the least recently used one is
+ * taken over - which only means a busy key may get a full bucket. Races on
+ * a slot being reused can also give or take a token: the limits are
+ * approximate.
+ */
+public class RateLimiter {
+    static final int DEFAULT_CAPACITY = 8192;
+
+    private static final int MAX_PROBES = 8;
+
+    // State: update time (ms since 'base') in the high bits, millitokens in
+    // the low TOKEN_BITS. 0 is a new, full bucket.
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    static final long MAX_BURST = TOKEN_MASK / 1000;
+
+    private static RateLimiter instance;
+
+    private final int mask;
+    private final AtomicLongArray fingerprints;
+    private final AtomicLongArray states;
+    // Times are > 0, so 0 is never a valid state.
+    private final long base = System.currentTimeMillis() - 1;
+
+    public RateLimiter(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+        mask = size - 1;
+        fingerprints = new AtomicLongArray(size);
+        states = new AtomicLongArray(size);
+    }
+
+    public static synchronized RateLimiter get() {
+        if (instance == null) {
+            instance = new RateLimiter(DEFAULT_CAPACITY);
+        }
+        return instance;
+    }
+
+    public static long userKey(String user) {
+        return key("u " + user);
+    }
+
+    public static long ipKey(String ip) {
+        return key("ip " + ip);
+    }
+
+    private static long key(String s) {
+        long h = DedupeWindow.fingerprint(s);
+        // 0 marks free slots
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Take 'cost' tokens from the bucket of 'key'.
+     *
+     * @param perMinute refill rate - 0 or less disables the limit.
+     * @return 0 if allowed, else the time in ms until enough tokens are
+     *     available - or -1 if cost is more than the burst.
+     */
+    public long acquire(long key, int cost, long perMinute, long burst) {
+        if (perMinute <= 0) {
+            return 0;
+        }
+        burst = Math.max(1, Math.min(burst, MAX_BURST));
+        if (cost > burst) {
+            return -1;
+        }
+        long now = System.currentTimeMillis() - base;
+        long capacity = burst * 1000;
+        long needed = cost * 1000L;
+        // Time to refill an empty bucket - older buckets are full.
+        long fullMs = capacity * 60 / perMinute;
+        int slot = slot(key, now, fullMs);
+        while (true) {
+            long state = states.get(slot);
+            long tokens = tokens(state, now, capacity, perMinute, fullMs);
+            if (tokens < needed) {
+                return Math.max(1, (needed - tokens) * 60 / perMinute);
+            }
+            long updated = (now << TOKEN_BITS) | (tokens - needed);
+            if (states.compareAndSet(slot, state, updated)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Give back 'cost' tokens taken by acquire() - for a send that was
+     * rejected by another bucket. Same limits as the acquire() call.
+     */
+    public void refund(long key, int cost, long perMinute, long burst) {
+        if (perMinute <= 0) {
+            return;
+        }
+        burst = Math.max(1, Math.min(burst, MAX_BURST));
+        long now = System.currentTimeMillis() - base;
+        long capacity = burst * 1000;
+        long fullMs = capacity * 60 / perMinute;
+        int start = (int) (key ^ (key >>> 32)) & mask;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = (start + i) & mask;
+            if (fingerprints.get(slot) != key) {
+                continue;
+            }
+            while (true) {
+                long state = states.get(slot);
+                long tokens = Math.min(capacity,
+                        tokens(state, now, capacity, perMinute, fullMs) + cost * 1000L);
+                long updated = (now << TOKEN_BITS) | tokens;
+                if (states.compareAndSet(slot, state, updated)) {
+                    return;
+                }
+            }
+        }
+        // Slot taken over - the bucket is full again.
+    }
+
+    /**
+     * Millitokens of a bucket at 'now', with the refill since its update.
+     */
+    private static long tokens(long state, long now, long capacity, long perMinute,
+                               long fullMs) {
+        long last = state >>> TOKEN_BITS;
+        long elapsed = now - last;
+        if (state == 0 || elapsed >= fullMs || elapsed < 0) {
+            return capacity;
+        }
+        return Math.min(capacity, (state & TOKEN_MASK) + elapsed * perMinute / 60);
+    }
+
+    /**
+     * Find the slot of 'key', or claim one for it.
+     */
+    private int slot(long key, long now, long fullMs) {
+        int start = (int) (key ^ (key >>> 32)) & mask;
+        while (true) {
+            int reusable = -1;
+            int oldest = -1;
+            long oldestTime = Long.MAX_VALUE;
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int slot = (start + i) & mask;
+                long fingerprint = fingerprints.get(slot);
+                if (fingerprint == key) {
+                    return slot;
+                }
+                long last = states.get(slot) >>> TOKEN_BITS;
+                if (reusable < 0 && (fingerprint == 0 || now - last >= fullMs)) {
+                    reusable = slot;
+                }
+                if (last < oldestTime) {
+                    oldest = slot;
+                    oldestTime = last;
+                }
+            }
+            int slot = reusable >= 0 ? reusable : oldest;
+            long previous = fingerprints.get(slot);
+            if (previous == key) {
+                return slot;
+            }
+            if (fingerprints.compareAndSet(slot, previous, key)) {
+                states.set(slot, 0);
+                return slot;
+            }
+            // Lost a race for the slot - probe again.
+        }
+    }
+}
@@ -23,6 +23,7 @@ import org.json.simple.JSONObject;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -38,21 +39,31 @@ public class RegisterServlet extends HttpServlet {
     private static final String OK_STATUS = "OK";
     private static final String ERROR_STATUS = "ERROR";
 
-    private static int MAX_DEVICES = 10;
+    static final int MAX_DEVICES = 10;
+
+    /**
+     * Admission control for /register - see ConcurrencyLimiter.
+     */
+    private static final ConcurrencyLimiter limiter = new ConcurrencyLimiter("register");
 
     /**
      * Return all devices and associated info, allows device selection
      * and management.
      */
     @Override
-    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-
-        RequestInfo reqInfo = RequestInfo.processRequest(req, resp, getServletContext());
-        if (reqInfo == null) {
-            // Not authenticated or other errors
-            return;
-        }
+    public void doGet(HttpServletRequest req, final HttpServletResponse resp)
+            throws IOException {
+        RequestPipeline.run(req, resp, null, limiter,
+                RequestInfo.stages(req, resp, getServletContext(), new RequestInfo.Handler() {
+                    @Override
+                    public void handle(RequestInfo reqInfo) throws IOException {
+                        listDevices(reqInfo, resp);
+                    }
+                }));
+    }
 
+    private void listDevices(RequestInfo reqInfo, HttpServletResponse resp) throws IOException {
+        reqInfo.sampleLatency();
         resp.setContentType("application/json");
         JSONObject regs = new JSONObject();
         try {
@@ -81,14 +92,20 @@ public class RegisterServlet extends HttpServlet {
 
 
     @Override
-    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    public void doPost(HttpServletRequest req, final HttpServletResponse resp)
+            throws IOException {
         resp.setContentType("text/plain");
 
-        RequestInfo reqInfo = RequestInfo.processRequest(req, resp,
-                getServletContext());
-        if (reqInfo == null) {
-            return;
-        }
+        RequestPipeline.run(req, resp, null, limiter,
+                RequestInfo.stages(req, resp, getServletContext(), new RequestInfo.Handler() {
+                    @Override
+                    public void handle(RequestInfo reqInfo) throws IOException {
+                        register(reqInfo, resp);
+                    }
+                }));
+    }
+
+    private void register(RequestInfo reqInfo, HttpServletResponse resp) throws IOException {
 
         if (reqInfo.deviceRegistrationID == null) {
             resp.setStatus(400);
@@ -97,6 +114,8 @@ public class RegisterServlet extends HttpServlet {
             return;
         }
 
+        reqInfo.sampleLatency();
+
         // TODO: generate the device name by adding a number suffix for multiple
         // devices of same type. Change android app to send model/type.
 
@@ -113,11 +132,10 @@ public class RegisterServlet extends HttpServlet {
         if (registrations.size() > MAX_DEVICES) {
             // we could return an error - but user can't handle it yet.
             // we can't let it grow out of bounds.
-            // TODO: we should also define a 'ping' message and expire/remove
-            // unused registrations
+            // Unused registrations are also expired by DevicePruneServlet.
             DeviceInfo oldest = registrations.get(0);
             if (oldest.getRegistrationTimestamp() == null) {
-                reqInfo.deleteRegistration(oldest.getDeviceRegistrationID(), deviceType);
+                reqInfo.deleteDevices(Collections.singletonList(oldest));
             } else {
                 long oldestTime = oldest.getRegistrationTimestamp().getTime();
                 for (int i = 1; i < registrations.size(); i++) {
@@ -127,7 +145,7 @@ public class RegisterServlet extends HttpServlet {
                         oldestTime = oldest.getRegistrationTimestamp().getTime();
                     }
                 }
-                reqInfo.deleteRegistration(oldest.getDeviceRegistrationID(), deviceType);
+                reqInfo.deleteDevices(Collections.singletonList(oldest));
             }
         }
 
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Registration id -> device key names, for the backends that keep their
+ * index in memory. Most registration ids have a single device, stored
+ * without a collection.
+ *
+ * Not thread safe.
+ */
+class RegistrationIdIndex {
+    /**
+     * String for a single device, else String[].
+     */
+    private final HashMap<String, Object> index = new HashMap<String, Object>();
+
+    void add(String regId, String keyName) {
+        Object old = index.get(regId);
+        if (old == null) {
+            index.put(regId, keyName);
+        } else if (old instanceof String) {
+            if (!old.equals(keyName)) {
+                index.put(regId, new String[] {(String) old, keyName});
+            }
+        } else {
+            String[] keys = (String[]) old;
+            if (!Arrays.asList(keys).contains(keyName)) {
+                String[] res = Arrays.copyOf(keys, keys.length + 1);
+                res[keys.length] = keyName;
+                index.put(regId, res);
+            }
+        }
+    }
+
+    void remove(String regId, String keyName) {
+        Object old = index.get(regId);
+        if (old == null) {
+            return;
+        }
+        if (old instanceof String) {
+            if (old.equals(keyName)) {
+                index.remove(regId);
+            }
+            return;
+        }
+        String[] keys = (String[]) old;
+        int idx = Arrays.asList(keys).indexOf(keyName);
+        if (idx < 0) {
+            return;
+        }
+        if (keys.length == 2) {
+            index.put(regId, keys[1 - idx]);
+            return;
+        }
+        String[] res = new String[keys.length - 1];
+        System.arraycopy(keys, 0, res, 0, idx);
+        System.arraycopy(keys, idx + 1, res, idx, res.length - idx);
+        index.put(regId, res);
+    }
+
+    List<String> get(String regId) {
+        Object keys = index.get(regId);
+        if (keys == null) {
+            return Collections.emptyList();
+        }
+        if (keys instanceof String) {
+            return Collections.singletonList((String) keys);
+        }
+        return Arrays.asList(((String[]) keys).clone());
+    }
+
+    int size() {
+        return index.size();
+    }
+}
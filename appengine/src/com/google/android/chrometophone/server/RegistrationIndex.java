@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.annotations.Extension;
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+/**
+ * Reverse index: registration id -> keys of the devices using it.
+ *
+ * The key name is the registration id. A phone registered with several
+ * accounts has one device per account with the same registration id.
+ * Written in the same (cross-group) transaction as the devices.
+ */
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
+public class RegistrationIndex {
+
+    @PrimaryKey
+    @Persistent
+    private Key key;
+
+    /**
+     * Names of the DeviceInfo keys - user#deviceId.
+     */
+    @Persistent
+    @Extension(vendorName="datanucleus", key="gae.unindexed", value="true")
+    private List<String> deviceKeys;
+
+    public RegistrationIndex(String regId) {
+        this.key = createKey(regId);
+        this.deviceKeys = new ArrayList<String>();
+    }
+
+    public static Key createKey(String regId) {
+        return KeyFactory.createKey(RegistrationIndex.class.getSimpleName(), regId);
+    }
+
+    public String getRegistrationId() {
+        return key.getName();
+    }
+
+    public List<String> getDeviceKeys() {
+        return deviceKeys != null ? deviceKeys : new ArrayList<String>();
+    }
+
+    public void setDeviceKeys(List<String> deviceKeys) {
+        this.deviceKeys = deviceKeys;
+    }
+}
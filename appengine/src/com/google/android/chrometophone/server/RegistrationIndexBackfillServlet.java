@@ -0,0 +1,140 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Adds RegistrationIndex entries for DeviceInfo entities saved before the
+ * index existed, one batch of devices per request. Each batch adds a task
+ * for the next one - start it by opening the URL as admin.
+ *
+ * Safe to run again: entries are only added, and adding an existing one
+ * changes nothing. The devices are read again in the transaction adding
+ * their entries, so a device deleted or registered again after the query
+ * is skipped - the change indexed it. A change committed during the
+ * transaction fails it, and the task is retried. Devices in DeviceSet
+ * entities were indexed when their set was created.
+ */
+@SuppressWarnings("serial")
+public class RegistrationIndexBackfillServlet extends HttpServlet {
+    private static final Logger log =
+            Logger.getLogger(RegistrationIndexBackfillServlet.class.getName());
+
+    static final String TASK_URL = "/tasks/backfill-index";
+    static final int BATCH_SIZE = 100;
+
+    /**
+     * Devices per transaction - each device and its registration id are
+     * two entity groups, a transaction can use 25.
+     */
+    static final int DEVICES_PER_TX = 12;
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        doPost(req, resp);
+    }
+
+    @Override
+    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/plain");
+        StorageBackend backend = Storage.get(getServletContext()).getBackend();
+        if (backend instanceof MemoryStorageBackend ||
+                backend instanceof MappedLogStorageBackend) {
+            resp.getWriter().println("OK done, the index is rebuilt on load");
+            return;
+        }
+
+        FetchOptions fetch = FetchOptions.Builder.withLimit(BATCH_SIZE);
+        String cursor = req.getParameter("cursor");
+        if (cursor != null) {
+            fetch.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Query query = new Query(EntityMapper.DEVICE_KIND);
+        QueryResultList<Entity> batch = datastore.prepare(query).asQueryResultList(fetch);
+
+        for (int i = 0; i < batch.size(); i += DEVICES_PER_TX) {
+            index(datastore, batch.subList(i, Math.min(i + DEVICES_PER_TX, batch.size())));
+        }
+
+        if (batch.size() < BATCH_SIZE) {
+            log.info("Registration index backfill done");
+            resp.getWriter().println("OK done, indexed " + batch.size());
+            return;
+        }
+        String next = batch.getCursor().toWebSafeString();
+        QueueFactory.getDefaultQueue().add(
+                TaskOptions.Builder.withUrl(TASK_URL).param("cursor", next));
+        log.info("Indexed " + batch.size() + " devices, continuing");
+        resp.getWriter().println("OK indexed " + batch.size() + ", next " + next);
+    }
+
+    /**
+     * Add the index entries of the devices found by the query, if they are
+     * unchanged. A concurrent change fails the request, and the queue
+     * retries it.
+     */
+    static void index(DatastoreService datastore, List<Entity> rows) {
+        Transaction tx = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+        try {
+            List<Key> keys = new ArrayList<Key>(rows.size());
+            for (Entity row : rows) {
+                keys.add(row.getKey());
+            }
+            Map<Key, Entity> current = datastore.get(tx, keys);
+            RegistrationIndexChanges index = new RegistrationIndexChanges(datastore, tx);
+            for (Entity row : rows) {
+                Entity entity = current.get(row.getKey());
+                String regId = entity == null ? null :
+                        (String) entity.getProperty(EntityMapper.REGISTRATION_ID);
+                if (regId == null ||
+                        !regId.equals(row.getProperty(EntityMapper.REGISTRATION_ID))) {
+                    continue;
+                }
+                index.add(regId, row.getKey().getName());
+            }
+            index.write();
+            tx.commit();
+        } finally {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+        }
+    }
+}
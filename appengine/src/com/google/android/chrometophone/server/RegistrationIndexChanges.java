@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * RegistrationIndex changes of a transaction, for the backends using the
+ * datastore API directly. The datastore doesn't show a transaction its own
+ * writes, so they are collected and written at the end.
+ *
+ * Each registration id read is one more entity group in the transaction.
+ */
+class RegistrationIndexChanges {
+    static final String KIND = RegistrationIndex.class.getSimpleName();
+    static final String PROPERTY_DEVICE_KEYS = "deviceKeys";
+
+    private final DatastoreService datastore;
+    private final Transaction tx;
+    private final Map<String, List<String>> entries = new HashMap<String, List<String>>();
+
+    RegistrationIndexChanges(DatastoreService datastore, Transaction tx) {
+        this.datastore = datastore;
+        this.tx = tx;
+    }
+
+    private List<String> get(String regId) {
+        List<String> keyNames = entries.get(regId);
+        if (keyNames == null) {
+            keyNames = new ArrayList<String>();
+            try {
+                Entity index = datastore.get(tx, KeyFactory.createKey(KIND, regId));
+                @SuppressWarnings("unchecked")
+                List<String> stored = (List<String>) index.getProperty(PROPERTY_DEVICE_KEYS);
+                if (stored != null) {
+                    keyNames.addAll(stored);
+                }
+            } catch (EntityNotFoundException e) {
+                // new
+            }
+            entries.put(regId, keyNames);
+        }
+        return keyNames;
+    }
+
+    /**
+     * Read the entries of several registration ids with one call.
+     */
+    void load(Collection<String> regIds) {
+        List<Key> keys = new ArrayList<Key>();
+        for (String regId : regIds) {
+            if (regId != null && !entries.containsKey(regId)) {
+                keys.add(KeyFactory.createKey(KIND, regId));
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        Map<Key, Entity> found = datastore.get(tx, keys);
+        for (Key key : keys) {
+            List<String> keyNames = new ArrayList<String>();
+            Entity index = found.get(key);
+            if (index != null) {
+                @SuppressWarnings("unchecked")
+                List<String> stored = (List<String>) index.getProperty(PROPERTY_DEVICE_KEYS);
+                if (stored != null) {
+                    keyNames.addAll(stored);
+                }
+            }
+            entries.put(key.getName(), keyNames);
+        }
+    }
+
+    void add(String regId, String keyName) {
+        if (regId != null) {
+            List<String> keyNames = get(regId);
+            if (!keyNames.contains(keyName)) {
+                keyNames.add(keyName);
+            }
+        }
+    }
+
+    void remove(String regId, String keyName) {
+        if (regId != null) {
+            get(regId).remove(keyName);
+        }
+    }
+
+    void write() {
+        List<Entity> puts = new ArrayList<Entity>();
+        List<Key> deletes = new ArrayList<Key>();
+        for (Map.Entry<String, List<String>> e : entries.entrySet()) {
+            Key key = KeyFactory.createKey(KIND, e.getKey());
+            if (e.getValue().isEmpty()) {
+                deletes.add(key);
+            } else {
+                Entity index = new Entity(key);
+                index.setUnindexedProperty(PROPERTY_DEVICE_KEYS, e.getValue());
+                puts.add(index);
+            }
+        }
+        if (!puts.isEmpty()) {
+            datastore.put(tx, puts);
+        }
+        if (!deletes.isEmpty()) {
+            datastore.delete(tx, deletes);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Applies the registry actions queued by RegistryWriteBehind. Run by cron
+ * (see cron.xml), leases batches until the queue is empty or the time is
+ * up.
+ *
+ * Tasks are deleted after their actions are applied. If applying fails
+ * they are leased again when the lease expires, up to MAX_RETRIES times.
+ */
+@SuppressWarnings("serial")
+public class RegistryTaskServlet extends HttpServlet {
+    private static final Logger log = Logger.getLogger(RegistryTaskServlet.class.getName());
+
+    static final int LEASE_BATCH = 500;
+    static final long LEASE_SECONDS = 120;
+    static final long MAX_RUN_MS = 60 * 1000;
+    static final int MAX_RETRIES = 5;
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        doPost(req, resp);
+    }
+
+    @Override
+    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/plain");
+        Storage storage = Storage.get(getServletContext());
+        Queue queue = QueueFactory.getQueue(RegistryWriteBehind.QUEUE_NAME);
+        long start = System.currentTimeMillis();
+        int applied = 0;
+        while (System.currentTimeMillis() - start < MAX_RUN_MS) {
+            List<TaskHandle> tasks = queue.leaseTasks(LEASE_SECONDS, TimeUnit.SECONDS,
+                    LEASE_BATCH);
+            if (tasks.isEmpty()) {
+                break;
+            }
+            List<RegistryWriteBehind.Action> actions =
+                    new ArrayList<RegistryWriteBehind.Action>();
+            List<TaskHandle> done = new ArrayList<TaskHandle>(tasks.size());
+            for (TaskHandle task : tasks) {
+                Integer retries = task.getRetryCount();
+                if (retries != null && retries > MAX_RETRIES) {
+                    log.warning("Dropping registry task " + task.getName());
+                    done.add(task);
+                    continue;
+                }
+                try {
+                    actions.addAll(RegistryWriteBehind.parse(task));
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "Invalid registry task " + task.getName(), e);
+                }
+                done.add(task);
+            }
+            try {
+                RegistryWriteBehind.apply(storage, actions);
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Error applying registry actions", e);
+                break; // leases expire, the tasks will run again
+            }
+            queue.deleteTask(done);
+            applied += actions.size();
+            Metrics.get().counter(Metrics.REGISTRY_ACTIONS_APPLIED).add(actions.size());
+        }
+        log.info("Applied " + applied + " registry actions");
+        resp.getWriter().println("OK " + applied);
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Bulk export and import of the device registry as NDJSON - one device per
+ * line, with the DeviceInfo property names and the key name as "key":
+ *
+ *   {"key":"user#1f2e","deviceRegistrationID":"...","type":"ac2dm",
+ *    "name":"Nexus","registrationTimestamp":1285000000000,"gcm":true}
+ *
+ * GET /admin/registry/export streams the devices of any backend, a page
+ * at a time - see StorageBackend.listDevices. When the request runs out of
+ * time the last line is {"cursor":"..."} - request the export again with
+ * that cursor to get the rest.
+ *
+ * POST /admin/registry/import reads an export and writes it in batches,
+ * with several batches in flight. The response is the checkpoint: the
+ * number of input lines that are stored. If the import stops - time limit
+ * or error - post the same file again with skip=checkpoint. Writes are
+ * idempotent, so replaying lines after the checkpoint is safe.
+ *
+ * With the datastore backends entities are written directly, other
+ * backends get each device through saveDevice - so an export can be
+ * imported in any backend.
+ */
+@SuppressWarnings("serial")
+public class RegistryTransferServlet extends HttpServlet {
+    private static final Logger log =
+            Logger.getLogger(RegistryTransferServlet.class.getName());
+
+    static final String PARAM_CURSOR = "cursor";
+    static final String PARAM_LIMIT = "limit";
+    static final String PARAM_SKIP = "skip";
+
+    /**
+     * The target has no registrations yet: don't read the stored devices
+     * and RegistrationIndex entries, and don't invalidate cached devices.
+     */
+    static final String PARAM_FRESH = "fresh";
+
+    static final String KEY = "key";
+
+    static final int EXPORT_CHUNK_SIZE = 500;
+    static final int IMPORT_BATCH_SIZE = 200;
+    static final int IMPORT_MAX_IN_FLIGHT = 4;
+
+    /**
+     * Requests have 60 seconds - leave time to finish the batches in
+     * flight and write the response.
+     */
+    static final long TIME_BUDGET_MS = 45 * 1000;
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (!req.getRequestURI().endsWith("/export")) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        StorageBackend backend = Storage.get(getServletContext()).getBackend();
+        long deadline = System.currentTimeMillis() + TIME_BUDGET_MS;
+        long limit = Long.MAX_VALUE;
+        if (req.getParameter(PARAM_LIMIT) != null) {
+            limit = Long.parseLong(req.getParameter(PARAM_LIMIT));
+        }
+
+        String cursor = req.getParameter(PARAM_CURSOR);
+
+        resp.setContentType("application/x-ndjson");
+        resp.setCharacterEncoding("UTF-8");
+        PrintWriter out = resp.getWriter();
+        long count = 0;
+        while (count < limit && System.currentTimeMillis() < deadline) {
+            int size = (int) Math.min(EXPORT_CHUNK_SIZE, limit - count);
+            List<DeviceInfo> page = backend.listDevices(cursor, size);
+            for (DeviceInfo device : page) {
+                out.println(toJson(device).toJSONString());
+            }
+            count += page.size();
+            if (page.size() < size) {
+                log.info("Exported " + count + " devices, done");
+                return;
+            }
+            cursor = page.get(page.size() - 1).getKey().getName();
+        }
+        out.println(cursorJson(cursor).toJSONString());
+        log.info("Exported " + count + " devices, continuing");
+    }
+
+    @Override
+    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (!req.getRequestURI().endsWith("/import")) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        resp.setContentType("text/plain");
+        long deadline = System.currentTimeMillis() + TIME_BUDGET_MS;
+        long skip = 0;
+        if (req.getParameter(PARAM_SKIP) != null) {
+            skip = Long.parseLong(req.getParameter(PARAM_SKIP));
+        }
+        Storage storage = Storage.get(getServletContext());
+        Importer importer = new Importer(storage, "1".equals(req.getParameter(PARAM_FRESH)),
+                skip);
+
+        BufferedReader in = req.getReader();
+        JSONParser parser = new JSONParser();
+        List<DeviceInfo> batch = new ArrayList<DeviceInfo>(IMPORT_BATCH_SIZE);
+        long line = 0;
+        boolean complete = true;
+        try {
+            String s;
+            while ((s = in.readLine()) != null) {
+                line++;
+                if (line <= skip || s.trim().isEmpty()) {
+                    continue;
+                }
+                batch.add(fromJson((JSONObject) parser.parse(s)));
+                if (batch.size() == IMPORT_BATCH_SIZE) {
+                    importer.submit(batch, line);
+                    batch = new ArrayList<DeviceInfo>(IMPORT_BATCH_SIZE);
+                    if (System.currentTimeMillis() > deadline) {
+                        complete = false;
+                        break;
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                importer.submit(batch, line);
+            }
+            importer.finish();
+        } catch (ParseException | ClassCastException | IllegalArgumentException e) {
+            // Store what was read before the bad line.
+            String message = "line " + line + ": " + e;
+            try {
+                importer.finish();
+            } catch (ImportException e2) {
+                message = e2.getMessage();
+            }
+            fail(resp, message, importer);
+            return;
+        } catch (ImportException e) {
+            fail(resp, e.getMessage(), importer);
+            return;
+        }
+        if (complete) {
+            // Blank lines at the end are part of the import too.
+            importer.checkpoint = line;
+        }
+        log.info("Imported " + importer.imported + " devices, checkpoint " +
+                importer.checkpoint + (complete ? ", done" : ", continuing"));
+        resp.getWriter().println((complete ? "OK done" : "OK partial") +
+                ", imported " + importer.imported + ", checkpoint " + importer.checkpoint);
+    }
+
+    private static void fail(HttpServletResponse resp, String message, Importer importer)
+            throws IOException {
+        log.warning("Import failed at checkpoint " + importer.checkpoint + ": " + message);
+        resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        resp.getWriter().println("ERROR (" + message + "), imported " + importer.imported +
+                ", checkpoint " + importer.checkpoint);
+    }
+
+    @SuppressWarnings("unchecked")
+    static JSONObject cursorJson(String cursor) {
+        JSONObject res = new JSONObject();
+        res.put(PARAM_CURSOR, cursor);
+        return res;
+    }
+
+    @SuppressWarnings("unchecked")
+    static JSONObject toJson(DeviceInfo device) {
+        JSONObject res = new JSONObject();
+        res.put(KEY, device.getKey().getName());
+        res.put(EntityMapper.REGISTRATION_ID, device.getDeviceRegistrationID());
+        if (device.getType() != null) {
+            res.put(EntityMapper.TYPE, device.getType());
+        }
+        if (device.getName() != null) {
+            res.put(EntityMapper.NAME, device.getName());
+        }
+        if (device.getRegistrationTimestamp() != null) {
+            res.put(EntityMapper.REGISTRATION_TIMESTAMP,
+                    device.getRegistrationTimestamp().getTime());
+        }
+        if (device.getDebug()) {
+            res.put(EntityMapper.DEBUG, true);
+        }
+        if (device.getGcm() != null) {
+            res.put(EntityMapper.GCM, device.getGcm());
+        }
+        return res;
+    }
+
+    static DeviceInfo fromJson(JSONObject json) {
+        DeviceInfo device = new DeviceInfo(EntityMapper.deviceKey((String) json.get(KEY)));
+        device.setDeviceRegistrationID((String) json.get(EntityMapper.REGISTRATION_ID));
+        device.setType((String) json.get(EntityMapper.TYPE));
+        device.setName((String) json.get(EntityMapper.NAME));
+        Long timestamp = (Long) json.get(EntityMapper.REGISTRATION_TIMESTAMP);
+        device.setRegistrationTimestamp(timestamp == null ? null : new Date(timestamp));
+        device.setDebug(Boolean.TRUE.equals(json.get(EntityMapper.DEBUG)));
+        device.setGcm((Boolean) json.get(EntityMapper.GCM));
+        return device;
+    }
+
+    static class ImportException extends Exception {
+        ImportException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Writes batches, keeping up to IMPORT_MAX_IN_FLIGHT of them running.
+     * Batches are completed in order, so the checkpoint is the last line of
+     * the last completed batch.
+     */
+    static class Importer {
+        private final Storage storage;
+        private final AsyncDatastoreService datastore;
+        private final boolean fresh;
+        private final Deque<Batch> inFlight = new ArrayDeque<Batch>();
+
+        long checkpoint;
+        long imported;
+
+        Importer(Storage storage, boolean fresh, long checkpoint) {
+            this.storage = storage;
+            this.fresh = fresh;
+            this.checkpoint = checkpoint;
+            this.datastore = storage.hasDeviceEntities() ?
+                    DatastoreServiceFactory.getAsyncDatastoreService() : null;
+        }
+
+        private static class Batch {
+            final Future<List<Key>> put;
+            final Future<Void> delete;
+            final long lastLine;
+            final int size;
+            final Set<String> users;
+
+            Batch(Future<List<Key>> put, Future<Void> delete, long lastLine, int size,
+                  Set<String> users) {
+                this.put = put;
+                this.delete = delete;
+                this.lastLine = lastLine;
+                this.size = size;
+                this.users = users;
+            }
+
+            void await() throws InterruptedException, ExecutionException {
+                put.get();
+                if (delete != null) {
+                    delete.get();
+                }
+            }
+        }
+
+        void submit(List<DeviceInfo> devices, long lastLine) throws ImportException {
+            Set<String> users = new LinkedHashSet<String>();
+            for (DeviceInfo device : devices) {
+                users.add(Storage.getUser(device.getKey()));
+            }
+            if (datastore == null) {
+                StorageBackend backend = storage.getBackend();
+                try {
+                    for (DeviceInfo device : devices) {
+                        backend.saveDevice(device, 0);
+                    }
+                } catch (RuntimeException e) {
+                    throw new ImportException(e.toString(), e);
+                }
+                completed(lastLine, devices.size(), users);
+                return;
+            }
+            if (inFlight.size() == IMPORT_MAX_IN_FLIGHT) {
+                complete(inFlight.removeFirst());
+            }
+            List<Entity> entities = new ArrayList<Entity>(devices.size() * 2);
+            for (DeviceInfo device : devices) {
+                entities.add(EntityMapper.toEntity(device));
+            }
+            List<Key> staleIndex = new ArrayList<Key>();
+            entities.addAll(indexEntities(devices, staleIndex));
+            inFlight.addLast(new Batch(datastore.put(entities),
+                    staleIndex.isEmpty() ? null : datastore.delete(staleIndex),
+                    lastLine, devices.size(), users));
+        }
+
+        /**
+         * RegistrationIndex entries for the devices, merged with the stored
+         * ones unless the import is fresh. Batches in flight at the same
+         * time may overwrite each other's entries for the same registration
+         * id - only possible with duplicate registrations.
+         *
+         * When an imported device replaces a stored one with a different
+         * registration id, the device is removed from the old id's entry -
+         * entries left empty are added to deletes.
+         */
+        private List<Entity> indexEntities(List<DeviceInfo> devices, List<Key> deletes)
+                throws ImportException {
+            Map<String, List<String>> added = new HashMap<String, List<String>>();
+            for (DeviceInfo device : devices) {
+                String regId = device.getDeviceRegistrationID();
+                if (regId == null) {
+                    continue;
+                }
+                List<String> keyNames = added.get(regId);
+                if (keyNames == null) {
+                    keyNames = new ArrayList<String>(1);
+                    added.put(regId, keyNames);
+                }
+                keyNames.add(device.getKey().getName());
+            }
+            Map<String, List<String>> removed = new HashMap<String, List<String>>();
+            Map<Key, Entity> stored = new HashMap<Key, Entity>();
+            if (!fresh) {
+                // The devices being replaced and the entries of the new ids
+                // in one call.
+                List<Key> keys = new ArrayList<Key>(devices.size() + added.size());
+                for (DeviceInfo device : devices) {
+                    keys.add(device.getKey());
+                }
+                for (String regId : added.keySet()) {
+                    keys.add(RegistrationIndex.createKey(regId));
+                }
+                stored.putAll(get(keys));
+
+                List<Key> oldKeys = new ArrayList<Key>();
+                for (DeviceInfo device : devices) {
+                    Entity old = stored.get(device.getKey());
+                    String oldRegId = old == null ? null :
+                            (String) old.getProperty(EntityMapper.REGISTRATION_ID);
+                    if (oldRegId == null || oldRegId.equals(device.getDeviceRegistrationID())) {
+                        continue;
+                    }
+                    List<String> keyNames = removed.get(oldRegId);
+                    if (keyNames == null) {
+                        keyNames = new ArrayList<String>(1);
+                        removed.put(oldRegId, keyNames);
+                        if (!added.containsKey(oldRegId)) {
+                            oldKeys.add(RegistrationIndex.createKey(oldRegId));
+                        }
+                    }
+                    keyNames.add(device.getKey().getName());
+                }
+                if (!oldKeys.isEmpty()) {
+                    stored.putAll(get(oldKeys));
+                }
+            }
+
+            Set<String> regIds = new LinkedHashSet<String>(added.keySet());
+            regIds.addAll(removed.keySet());
+            List<Entity> res = new ArrayList<Entity>(regIds.size());
+            for (String regId : regIds) {
+                Key key = RegistrationIndex.createKey(regId);
+                List<String> keyNames = added.containsKey(regId) ?
+                        added.get(regId) : new ArrayList<String>();
+                Entity old = stored.get(key);
+                if (old != null) {
+                    @SuppressWarnings("unchecked")
+                    List<String> oldKeyNames = (List<String>) old.getProperty(
+                            RegistrationIndexChanges.PROPERTY_DEVICE_KEYS);
+                    if (oldKeyNames != null) {
+                        for (String keyName : oldKeyNames) {
+                            if (!keyNames.contains(keyName)) {
+                                keyNames.add(keyName);
+                            }
+                        }
+                    }
+                }
+                if (removed.containsKey(regId)) {
+                    keyNames.removeAll(removed.get(regId));
+                }
+                if (keyNames.isEmpty()) {
+                    deletes.add(key);
+                    continue;
+                }
+                Entity index = new Entity(key);
+                index.setUnindexedProperty(RegistrationIndexChanges.PROPERTY_DEVICE_KEYS,
+                        keyNames);
+                res.add(index);
+            }
+            return res;
+        }
+
+        private Map<Key, Entity> get(List<Key> keys) throws ImportException {
+            try {
+                return datastore.get(keys).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ImportException("interrupted", e);
+            } catch (ExecutionException e) {
+                throw new ImportException(e.getCause().toString(), e.getCause());
+            }
+        }
+
+        private void complete(Batch batch) throws ImportException {
+            try {
+                batch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort();
+                throw new ImportException("interrupted", e);
+            } catch (ExecutionException e) {
+                abort();
+                throw new ImportException(e.getCause().toString(), e.getCause());
+            }
+            completed(batch.lastLine, batch.size, batch.users);
+        }
+
+        private void completed(long lastLine, int size, Set<String> users) {
+            checkpoint = lastLine;
+            imported += size;
+            if (!fresh) {
+                for (String user : users) {
+                    storage.getDeviceCache().invalidate(user);
+                }
+            }
+        }
+
+        void finish() throws ImportException {
+            while (!inFlight.isEmpty()) {
+                complete(inFlight.removeFirst());
+            }
+        }
+
+        /**
+         * Wait for the batches in flight without moving the checkpoint -
+         * after a failure later batches may be stored, but replaying them
+         * is harmless.
+         */
+        void abort() {
+            while (!inFlight.isEmpty()) {
+                try {
+                    inFlight.removeFirst().await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    inFlight.clear();
+                } catch (ExecutionException e) {
+                    // already failing
+                }
+            }
+        }
+    }
+}
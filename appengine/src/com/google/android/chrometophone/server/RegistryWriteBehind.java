@@ -0,0 +1,225 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry housekeeping found while sending - canonical registration ids
+ * and dead registrations - applied later, outside the send request.
+ *
+ * A send request adds its actions to the 'registry' pull queue with one
+ * async call. RegistryTaskServlet (run by cron) leases them in batches,
+ * keeps only the last action for each device and registration id, and
+ * applies them - deletes with one batch call.
+ *
+ * Until then sends still use the old registration ids: GCM accepts them,
+ * and reports them again, which is coalesced.
+ *
+ * Without a task queue (standalone server) actions are applied in the
+ * background with an executor instead - see applyLocally().
+ */
+public class RegistryWriteBehind {
+    private static final Logger log = Logger.getLogger(RegistryWriteBehind.class.getName());
+
+    static final String QUEUE_NAME = "registry";
+
+    static final String OP_UPDATE = "update";
+    static final String OP_DELETE = "delete";
+
+    static final String PARAM_OP = "op";
+    static final String PARAM_KEY = "key";
+    static final String PARAM_REGID = "regid";
+    static final String PARAM_CANONICAL = "canonical";
+
+    private static volatile Storage localStorage;
+    private static volatile Executor localExecutor;
+
+    /**
+     * One change to a device.
+     */
+    public static class Action {
+        final String op;
+        final String keyName;
+        final String regId;
+        final String canonicalRegId;
+
+        Action(String op, String keyName, String regId, String canonicalRegId) {
+            this.op = op;
+            this.keyName = keyName;
+            this.regId = regId;
+            this.canonicalRegId = canonicalRegId;
+        }
+
+        public static Action update(DeviceInfo device, String canonicalRegId) {
+            return new Action(OP_UPDATE, device.getKey().getName(),
+                    device.getDeviceRegistrationID(), canonicalRegId);
+        }
+
+        public static Action delete(DeviceInfo device) {
+            return new Action(OP_DELETE, device.getKey().getName(),
+                    device.getDeviceRegistrationID(), null);
+        }
+
+        @Override
+        public String toString() {
+            return op + " " + keyName + " " + regId +
+                    (canonicalRegId != null ? " -> " + canonicalRegId : "");
+        }
+    }
+
+    /**
+     * Apply actions with the executor instead of the queue.
+     */
+    public static void applyLocally(Storage storage, Executor executor) {
+        localStorage = storage;
+        localExecutor = executor;
+    }
+
+    /**
+     * Add the actions to the queue, without waiting for the result. Errors
+     * are only logged - the actions will be found again on the next send.
+     */
+    public static void submit(final List<Action> actions) {
+        if (actions.isEmpty()) {
+            return;
+        }
+        final Storage storage = localStorage;
+        Executor executor = localExecutor;
+        if (storage != null && executor != null) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            apply(storage, actions);
+                            Metrics.get().counter(Metrics.REGISTRY_ACTIONS_APPLIED)
+                                    .add(actions.size());
+                        } catch (RuntimeException e) {
+                            log.log(Level.WARNING, "Can't apply registry actions " + actions, e);
+                        }
+                    }
+                });
+                Metrics.get().counter(Metrics.REGISTRY_ACTIONS_QUEUED).add(actions.size());
+            } catch (RejectedExecutionException e) {
+                log.log(Level.WARNING, "Can't queue registry actions " + actions, e);
+            }
+            return;
+        }
+        try {
+            QueueFactory.getQueue(QUEUE_NAME).addAsync(toTask(actions));
+            Metrics.get().counter(Metrics.REGISTRY_ACTIONS_QUEUED).add(actions.size());
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Can't queue registry actions " + actions, e);
+        }
+    }
+
+    /**
+     * Pull task with the actions, read back with parse().
+     */
+    static TaskOptions toTask(List<Action> actions) {
+        TaskOptions task = TaskOptions.Builder.withMethod(TaskOptions.Method.PULL);
+        for (Action action : actions) {
+            task.param(PARAM_OP, action.op)
+                    .param(PARAM_KEY, action.keyName)
+                    .param(PARAM_REGID, action.regId)
+                    .param(PARAM_CANONICAL,
+                            action.canonicalRegId != null ? action.canonicalRegId : "");
+        }
+        return task;
+    }
+
+    /**
+     * Actions of a leased task, in order.
+     */
+    static List<Action> parse(TaskHandle task) throws UnsupportedEncodingException {
+        List<Action> res = new ArrayList<Action>();
+        String op = null;
+        String keyName = null;
+        String regId = null;
+        for (Map.Entry<String, String> param : task.extractParams()) {
+            String name = param.getKey();
+            if (PARAM_OP.equals(name)) {
+                op = param.getValue();
+            } else if (PARAM_KEY.equals(name)) {
+                keyName = param.getValue();
+            } else if (PARAM_REGID.equals(name)) {
+                regId = param.getValue();
+            } else if (PARAM_CANONICAL.equals(name)) {
+                String canonical = param.getValue();
+                if (op != null && keyName != null && regId != null) {
+                    res.add(new Action(op, keyName, regId,
+                            canonical.isEmpty() ? null : canonical));
+                }
+                op = keyName = regId = null;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Keep the last action for each device and registration id - deletes
+     * win over updates.
+     */
+    static List<Action> coalesce(List<Action> actions) {
+        Map<String, Action> last = new LinkedHashMap<String, Action>();
+        for (Action action : actions) {
+            String id = action.keyName + "\n" + action.regId;
+            Action old = last.get(id);
+            if (old == null || !OP_DELETE.equals(old.op)) {
+                last.put(id, action);
+            }
+        }
+        return new ArrayList<Action>(last.values());
+    }
+
+    /**
+     * Apply the actions - deletes with one batch call. Throws if they can't
+     * be applied, the tasks are kept and the actions applied again.
+     */
+    static void apply(Storage storage, List<Action> actions) {
+        List<DeviceInfo> deletes = new ArrayList<DeviceInfo>();
+        for (Action action : coalesce(actions)) {
+            if (OP_DELETE.equals(action.op)) {
+                DeviceInfo device = new DeviceInfo(KeyFactory.createKey(
+                        DeviceInfo.class.getSimpleName(), action.keyName));
+                device.setDeviceRegistrationID(action.regId);
+                deletes.add(device);
+            } else if (OP_UPDATE.equals(action.op)) {
+                storage.updateRegistration(Storage.getUser(action.keyName),
+                        action.regId, action.canonicalRegId);
+            } else {
+                log.warning("Unknown registry action " + action);
+            }
+        }
+        storage.deleteDevices(deletes);
+        Metrics.get().counter(Metrics.REGISTRATIONS_PRUNED).add(deletes.size());
+    }
+}
@@ -9,16 +9,15 @@ import com.google.appengine.api.oauth.OAuthServiceFailureException;
 import com.google.appengine.api.users.User;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
+import com.google.apphosting.api.ApiProxy;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Reader;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -43,12 +42,23 @@ public class RequestInfo {
     static final String CLIENT_ID = "922510834487-26lfgg41esep0j076be36vtt8282id9p.apps.googleusercontent.com";
     static final String CLIENT_ID_DEV = "922510834487-26lfgg41esep0j076be36vtt8282id9p.apps.googleusercontent.com";
 
+    /**
+     * Audiences accepted in ID tokens - the server client IDs used by the
+     * PlayStore and dev builds of the android app.
+     */
+    static final String[] ID_TOKEN_AUDIENCES = {
+            "467296570994-jhoc110ncirlgk0dmuv82gr64aq1059g.apps.googleusercontent.com",
+            CLIENT_ID_DEV
+    };
+
     public List<DeviceInfo> devices = new ArrayList<DeviceInfo>();
 
     public String userName;
     public String unauthenticatedAccount;
 
     private ServletContext ctx;
+    // Null for requests created by the task queue workers.
+    private HttpServletRequest request;
     public String deviceRegistrationID;
 
     // Request parameters - transitioning to JSON, but need to support existing
@@ -71,6 +81,90 @@ public class RequestInfo {
      */
     public static RequestInfo processRequest(HttpServletRequest req,
                                              HttpServletResponse resp, ServletContext ctx) throws IOException {
+        RequestInfo ri = authenticateRequest(req, resp, ctx);
+        if (ri == null || !ri.loadDevices(req, resp)) {
+            return null;
+        }
+        return ri;
+    }
+
+    /**
+     * Handles an authenticated request, see stages().
+     */
+    interface Handler {
+        void handle(RequestInfo reqInfo) throws IOException;
+    }
+
+    /**
+     * Checked once the account is known: right after authentication, or
+     * for requests identified by their device (IID cookie) after the
+     * devices are loaded.
+     */
+    interface Admission {
+        /**
+         * @return false if the request is rejected - the response is written.
+         */
+        boolean admit(RequestInfo reqInfo) throws IOException;
+    }
+
+    /**
+     * processRequest() as RequestPipeline stages: authenticate, load the
+     * devices, then pass the request to the handler.
+     */
+    static RequestPipeline.Stage stages(HttpServletRequest req,
+            HttpServletResponse resp, ServletContext ctx, Handler handler) {
+        return stages(req, resp, ctx, null, handler);
+    }
+
+    /**
+     * @param admission may be null
+     */
+    static RequestPipeline.Stage stages(final HttpServletRequest req,
+            final HttpServletResponse resp, final ServletContext ctx,
+            final Admission admission, final Handler handler) {
+        return new RequestPipeline.Stage() {
+            @Override
+            public RequestPipeline.Stage run() throws IOException {
+                final RequestInfo ri = authenticateRequest(req, resp, ctx);
+                if (ri == null) {
+                    return null;
+                }
+                // Cookie requests have no user until loadDevices() - checking
+                // now would put them all under the same (null) user.
+                final boolean userKnown = ri.userName != null;
+                if (admission != null && userKnown && !admission.admit(ri)) {
+                    return null;
+                }
+                return new RequestPipeline.Stage() {
+                    @Override
+                    public RequestPipeline.Stage run() throws IOException {
+                        if (!ri.loadDevices(req, resp)) {
+                            return null;
+                        }
+                        if (admission != null && !userKnown && !admission.admit(ri)) {
+                            return null;
+                        }
+                        return new RequestPipeline.Stage() {
+                            @Override
+                            public RequestPipeline.Stage run() throws IOException {
+                                handler.handle(ri);
+                                return null;
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * First part of processRequest(): check headers, parse the parameters
+     * and authenticate - loadDevices() must be called next.
+     *
+     * @return null if authentication fails.
+     */
+    static RequestInfo authenticateRequest(HttpServletRequest req,
+            HttpServletResponse resp, ServletContext ctx) throws IOException {
 
         // Basic XSRF protection
         if (req.getHeader("X-Same-Domain") == null) {
@@ -82,21 +176,11 @@ public class RequestInfo {
 
         RequestInfo ri = new RequestInfo();
         ri.ctx = ctx;
+        ri.request = req;
 
         if (req.getContentType().startsWith("application/json")) {
-            Reader reader = req.getReader();
-            // where is readFully ?
-            char[] tmp = new char[2048];
-            StringBuffer body = new StringBuffer();
-            while (true) {
-                int cnt = reader.read(tmp);
-                if (cnt <= 0) {
-                    break;
-                }
-                body.append(tmp, 0, cnt);
-            }
             try {
-                ri.jsonParams = (JSONObject) new JSONParser().parse(body.toString());
+                ri.jsonParams = parseJson(req.getReader());
                 //new JSONObject(body.toString());
                 //} catch (JSONException e) {
                 //    resp.setStatus(500);
@@ -111,7 +195,11 @@ public class RequestInfo {
             ri.parameterMap = castMap;
         }
 
-        if (!ri.authenticate(req, resp)) {
+        long authStart = System.nanoTime();
+        boolean authenticated = ri.authenticate(req, resp);
+        Metrics.get().histogram(Metrics.AUTH_MS).observeSince(authStart);
+        if (!authenticated) {
+            Metrics.get().counter(Metrics.AUTH_FAILURES).inc();
             return null;
         }
 
@@ -123,16 +211,40 @@ public class RequestInfo {
             }
         }
 
+        return ri;
+    }
+
+    /**
+     * Parse a JSON request body.
+     */
+    static JSONObject parseJson(Reader reader) throws IOException, ParseException {
+        // where is readFully ?
+        char[] tmp = new char[2048];
+        StringBuffer body = new StringBuffer();
+        while (true) {
+            int cnt = reader.read(tmp);
+            if (cnt <= 0) {
+                break;
+            }
+            body.append(tmp, 0, cnt);
+        }
+        return (JSONObject) new JSONParser().parse(body.toString());
+    }
+
+    /**
+     * Second part of processRequest(): load the devices, and finish the
+     * authentication of requests identified by their device.
+     *
+     * @return false if authentication fails.
+     */
+    boolean loadDevices(HttpServletRequest req, HttpServletResponse resp) throws IOException {
         // Load data from DB
         if (ctx != null) {
-            ri.initDevices(ctx);
+            initDevices(ctx);
         }
 
         // Verify the saved device info exists and matches what was sent
-        if (!postAuthenticate(req, resp, ri)) {
-            return null;
-        }
-        return ri;
+        return postAuthenticate(req, resp, this);
     }
 
     /**
@@ -168,15 +280,27 @@ public class RequestInfo {
     private static boolean postAuthenticate(HttpServletRequest req, HttpServletResponse resp, RequestInfo ri) throws IOException {
         if (ri.unauthenticatedAccount != null) {
             // Find the device.
-            for (DeviceInfo device : ri.devices) {
-                String regid = ri.deviceRegistrationID;
-                if (regid.equals(device.getDeviceRegistrationID())) {
-                    // Found the device, regid matches - same device
-                    ri.userName = ri.unauthenticatedAccount;
-                    log.info("Authenticate using IID cookie " + ri.userName);
-                    return true;
+            String regid = ri.deviceRegistrationID;
+            boolean found = false;
+            if (regid != null && ri.devices != null) {
+                for (DeviceInfo device : ri.devices) {
+                    if (regid.equals(device.getDeviceRegistrationID())) {
+                        found = true;
+                        break;
+                    }
                 }
             }
+            // The cached devices may be a few seconds old - check the index
+            // before asking for a login.
+            if (!found && regid != null && ri.ctx != null) {
+                found = Storage.get(ri.ctx).isRegisteredTo(regid, ri.unauthenticatedAccount);
+            }
+            if (found) {
+                // Found the device, regid matches - same device
+                ri.userName = ri.unauthenticatedAccount;
+                log.info("Authenticate using IID cookie " + ri.userName);
+                return true;
+            }
 
             resp.setStatus(200);
             resp.getWriter().println(LOGIN_REQUIRED_STATUS);
@@ -241,6 +365,9 @@ public class RequestInfo {
         } catch (OAuthServiceFailureException ex) {
             // optionally, handle an oauth service failure
             // ...
+        } catch (ApiProxy.ApiProxyException ex) {
+            // Not running on App Engine (standalone server)
+            log.fine("OAuth service not available: " + ex);
         }
 
         // Chrome: user + deviceID + chrome token (will be chrome GCM regid)
@@ -283,39 +410,46 @@ public class RequestInfo {
     }
 
     /**
-     * Process a id_token, access_token or token_handle, by using the tokeninfo
-     * endpoint
+     * Process a id_token - the signature is verified locally, using the
+     * cached Google signing keys.
      */
     private static String checkIdToken(String authParam) {
-        try {
-            URL url = new URL("https://www.googleapis.com/oauth2/v3/tokeninfo?id_token="
-                    + authParam);
-            InputStream is = url.openConnection().getInputStream();
-            JSONObject obj = (JSONObject) new JSONParser().parse(new InputStreamReader(is));
-
-            // TODO: verify audience!
-            log.info("Got: " + obj.toJSONString());
-
-            return (String) obj.get("email");
-        } catch (IOException e) {
-            log.log(Level.WARNING, "Error checking id token", e);
-            return null;
-        } catch (ParseException e) {
-            log.log(Level.WARNING, "Error checking id token " + authParam, e);
-            return null;
-        }
+        return IdTokenVerifier.get().verify(authParam);
     }
 
     public String getParameter(String name) {
         if (jsonParams != null) {
             return (String) jsonParams.get(name);
-        } else {
+        } else if (parameterMap != null) {
             String res[] = parameterMap.get(name);
             if (res == null || res.length == 0) {
                 return null;
             }
             return res[0];
         }
+        return null;
+    }
+
+    /**
+     * See RequestPipeline.sampleLatency().
+     */
+    void sampleLatency() {
+        if (request != null) {
+            RequestPipeline.sampleLatency(request);
+        }
+    }
+
+    /**
+     * Array parameter - only supported for JSON requests.
+     *
+     * @return null if missing or not an array.
+     */
+    public JSONArray getJsonArray(String name) {
+        if (jsonParams == null) {
+            return null;
+        }
+        Object value = jsonParams.get(name);
+        return value instanceof JSONArray ? (JSONArray) value : null;
     }
 
     /**
@@ -337,6 +471,20 @@ public class RequestInfo {
         }
     }
 
+    /**
+     * Request for an already authenticated user - used by the task queue
+     * workers.
+     */
+    public RequestInfo(String userN, Map<String, String[]> parameterMap,
+                       ServletContext ctx) {
+        this.parameterMap = parameterMap;
+        this.userName = userN;
+        this.ctx = ctx;
+        if (ctx != null) {
+            initDevices(ctx);
+        }
+    }
+
     private void initDevices(ServletContext ctx) {
         devices = Storage.get(ctx).loadDevices(
                 userName != null ? userName : unauthenticatedAccount);
@@ -348,4 +496,11 @@ public class RequestInfo {
     public void deleteRegistration(String regId, String type) {
         Storage.get(ctx).deleteRegistration(userName, regId, type);
     }
+
+    /**
+     * Delete devices loaded by this request, by key.
+     */
+    public void deleteDevices(List<DeviceInfo> devices) {
+        Storage.get(ctx).deleteDevices(devices);
+    }
 }
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs a request as a chain of stages - authenticate, load devices, send,
+ * respond - each stage returning the next one.
+ *
+ * App Engine only supports Servlet 2.5, and by default the stages just run
+ * one after the other on the request thread. When a Dispatcher is enabled
+ * (the standalone server, on a Servlet 3 container) the request is put in
+ * async mode, each stage is a separate task on a bounded executor, and the
+ * container thread is released as soon as the chain is started - it isn't
+ * held while the datastore and push requests are in flight.
+ */
+public final class RequestPipeline {
+    private static final Logger log = Logger.getLogger(RequestPipeline.class.getName());
+
+    /**
+     * One step of a request.
+     */
+    public interface Stage {
+        /**
+         * @return the next stage, or null when the response is complete.
+         */
+        Stage run() throws IOException;
+    }
+
+    /**
+     * A request in async mode.
+     */
+    public interface AsyncRequest {
+        /**
+         * Finish the response. Must be safe to call more than once.
+         */
+        void complete();
+
+        /**
+         * Guards the response: held while a stage runs, and by the
+         * dispatcher while it fails a request that timed out.
+         */
+        Object lock();
+
+        /**
+         * True once the request is complete or timed out - the container
+         * may recycle the response, it must not be used any more. Check
+         * while holding lock().
+         */
+        boolean isDone();
+    }
+
+    /**
+     * Puts requests in async mode - implemented with the Servlet 3 API,
+     * which is not on the App Engine classpath.
+     */
+    public interface Dispatcher {
+        /**
+         * @return null if the request can't be handled asynchronously.
+         */
+        AsyncRequest startAsync(HttpServletRequest req, HttpServletResponse resp);
+    }
+
+    // Guarded by RequestPipeline.class
+    private static Dispatcher dispatcher;
+    private static Executor executor;
+
+    private RequestPipeline() {
+    }
+
+    /**
+     * Run the stages of the following requests on the executor, which
+     * should be bounded - a rejected stage fails the request with a 503.
+     */
+    public static synchronized void enable(Dispatcher dispatcher, Executor executor) {
+        RequestPipeline.executor = executor;
+        RequestPipeline.dispatcher = dispatcher;
+    }
+
+    public static synchronized void disable() {
+        dispatcher = null;
+        executor = null;
+    }
+
+    /**
+     * Seconds in the Retry-After of requests rejected by overload.
+     */
+    static final int RETRY_AFTER_SECONDS = 1;
+
+    static final String SAMPLE_ATTRIBUTE = RequestPipeline.class.getName() + ".sample";
+
+    /**
+     * Called by the handler when the request does the work the limiter
+     * protects (sends, datastore writes) - only the latency of those
+     * requests adapts the limit, see ConcurrencyLimiter.
+     */
+    public static void sampleLatency(HttpServletRequest req) {
+        req.setAttribute(SAMPLE_ATTRIBUTE, Boolean.TRUE);
+    }
+
+    /**
+     * Run the stages of a request, starting with 'first'.
+     *
+     * @param histogram Metrics histogram for the latency of the whole
+     *     chain, may be null.
+     * @param limiter requests over its limit get a 503 without running any
+     *     stage. May be null.
+     */
+    public static void run(HttpServletRequest req, HttpServletResponse resp,
+                           String histogram, ConcurrencyLimiter limiter, Stage first)
+            throws IOException {
+        long start = System.nanoTime();
+        Metrics.get().requestStarted();
+        long permit = 0;
+        if (limiter != null) {
+            permit = limiter.acquire();
+            if (permit < 0) {
+                // Counted by the limiter, a warning per request would flood the logs.
+                log.fine("Overloaded, rejecting " + req.getRequestURI());
+                overloaded(resp);
+                return;
+            }
+        }
+        Dispatcher d;
+        Executor e;
+        synchronized (RequestPipeline.class) {
+            d = dispatcher;
+            e = executor;
+        }
+        AsyncRequest async;
+        try {
+            async = d == null ? null : d.startAsync(req, resp);
+        } catch (RuntimeException ex) {
+            release(limiter, permit, req, true);
+            throw ex;
+        }
+        if (async == null) {
+            boolean failed = true;
+            try {
+                for (Stage stage = first; stage != null; ) {
+                    stage = stage.run();
+                }
+                failed = false;
+            } finally {
+                release(limiter, permit, req, failed);
+                observe(histogram, start);
+            }
+            return;
+        }
+        new Chain(async, req, resp, e, histogram, start, limiter, permit).submit(first);
+    }
+
+    /**
+     * 503 with Retry-After.
+     */
+    static void overloaded(HttpServletResponse resp) throws IOException {
+        resp.setStatus(503);
+        resp.setHeader("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+        resp.setContentType("text/plain");
+        resp.getWriter().println("ERROR (Server busy)");
+    }
+
+    private static void release(ConcurrencyLimiter limiter, long permit,
+                                HttpServletRequest req, boolean failed) {
+        if (limiter != null) {
+            limiter.release(permit, failed, req.getAttribute(SAMPLE_ATTRIBUTE) != null);
+        }
+    }
+
+    private static void observe(String histogram, long start) {
+        if (histogram != null) {
+            Metrics.get().histogram(histogram).observeSince(start);
+        }
+    }
+
+    /**
+     * The stages of one async request. Each stage runs holding the lock of
+     * the request, and only if it hasn't timed out - a stage never writes
+     * to a response the container already completed.
+     */
+    private static class Chain {
+        private final AsyncRequest async;
+        private final HttpServletRequest req;
+        private final HttpServletResponse resp;
+        private final Executor executor;
+        private final String histogram;
+        private final long start;
+        private final ConcurrencyLimiter limiter;
+        private final long permit;
+
+        Chain(AsyncRequest async, HttpServletRequest req, HttpServletResponse resp,
+              Executor executor, String histogram, long start, ConcurrencyLimiter limiter,
+              long permit) {
+            this.async = async;
+            this.req = req;
+            this.resp = resp;
+            this.executor = executor;
+            this.histogram = histogram;
+            this.start = start;
+            this.limiter = limiter;
+            this.permit = permit;
+        }
+
+        void submit(final Stage stage) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runStage(stage);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.warning("Request rejected, stage executor is full");
+                fail(503);
+            }
+        }
+
+        private void runStage(Stage stage) {
+            Stage next;
+            synchronized (async.lock()) {
+                if (async.isDone()) {
+                    // Timed out, the dispatcher sent the response.
+                    log.fine("Dropping the stages of " + req.getRequestURI());
+                    release(limiter, permit, req, true);
+                    observe(histogram, start);
+                    return;
+                }
+                try {
+                    next = stage.run();
+                } catch (Throwable t) {
+                    log.log(Level.WARNING, "Error handling request", t);
+                    fail(500);
+                    return;
+                }
+                if (next == null) {
+                    finish(false);
+                    return;
+                }
+            }
+            submit(next);
+        }
+
+        private void fail(int status) {
+            synchronized (async.lock()) {
+                if (!async.isDone()) {
+                    writeError(status);
+                }
+            }
+            finish(true);
+        }
+
+        private void writeError(int status) {
+            try {
+                if (!resp.isCommitted()) {
+                    resp.reset();
+                    if (status == 503) {
+                        overloaded(resp);
+                    } else {
+                        resp.setStatus(status);
+                        resp.setContentType("text/plain");
+                        resp.getWriter().println("ERROR (Internal error)");
+                    }
+                }
+            } catch (IOException e) {
+                log.log(Level.FINE, "Error writing the error response", e);
+            } catch (IllegalStateException e) {
+                log.log(Level.FINE, "Error writing the error response", e);
+            }
+        }
+
+        private void finish(boolean failed) {
+            release(limiter, permit, req, failed);
+            observe(histogram, start);
+            async.complete();
+        }
+    }
+}
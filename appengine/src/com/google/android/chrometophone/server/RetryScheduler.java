@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Retries failed deliveries using the task queue, so request threads never
+ * sleep.
+ *
+ * Each retry is a SendTaskServlet task restricted to the registration ids
+ * that failed, delayed with exponential backoff plus a random jitter - or
+ * by the Retry-After returned by the push server, if longer.
+ */
+public class RetryScheduler {
+    private static final Logger log = Logger.getLogger(RetryScheduler.class.getName());
+
+    static final int MAX_ATTEMPTS = 5;
+    static final long INITIAL_BACKOFF_MS = 1000;
+    static final long MAX_BACKOFF_MS = 10 * 60 * 1000;
+
+    static final String PARAM_ATTEMPT = "attempt";
+    static final String PARAM_REGID = "regid";
+
+    private static final Random random = new Random();
+
+    /**
+     * Delay before the given retry (1 for the first retry).
+     */
+    static long backoff(int attempt, long retryAfterMs) {
+        long delay = INITIAL_BACKOFF_MS << Math.min(attempt - 1, 20);
+        delay = Math.min(delay, MAX_BACKOFF_MS);
+        int jitter;
+        synchronized (random) {
+            jitter = random.nextInt(C2DMessaging.DATAMESSAGING_MAX_JITTER_MSEC);
+        }
+        return Math.max(delay + jitter, retryAfterMs);
+    }
+
+    /**
+     * Schedule another attempt to send the link to the devices.
+     *
+     * @param attempt the attempt that failed - 0 for the initial send.
+     * @return false if the max number of attempts was reached or the task
+     *     could not be added.
+     */
+    public static boolean schedule(String userName, String url, String title, String sel,
+                                   List<String> regIds, boolean debug,
+                                   int attempt, long retryAfterMs) {
+        int next = attempt + 1;
+        if (next >= MAX_ATTEMPTS) {
+            log.warning("Giving up sending to " + regIds.size() + " devices of " +
+                    userName + " after " + next + " attempts");
+            return false;
+        }
+        long delay = backoff(next, retryAfterMs);
+
+        TaskOptions task = SendTaskServlet.newTask(userName, url, title, sel,
+                null, null, debug)
+                .param(PARAM_ATTEMPT, Integer.toString(next))
+                .countdownMillis(delay);
+        for (String regId : regIds) {
+            task.param(PARAM_REGID, regId);
+        }
+        try {
+            QueueFactory.getQueue(SendTaskServlet.QUEUE_NAME).add(task);
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Can't schedule retry for " + userName, e);
+            return false;
+        }
+        Metrics.get().counter(Metrics.SEND_RETRIES).inc();
+        log.info("Retry " + next + " for " + regIds.size() + " devices of " + userName +
+                " in " + delay + "ms");
+        return true;
+    }
+}
@@ -17,17 +17,27 @@
 package com.google.android.chrometophone.server;
 
 import com.google.android.gcm.server.Constants;
+import com.google.android.gcm.server.InvalidRequestException;
 import com.google.android.gcm.server.Message;
 import com.google.android.gcm.server.Message.Builder;
+import com.google.android.gcm.server.MulticastResult;
 import com.google.android.gcm.server.Result;
 import com.google.android.gcm.server.Sender;
 import com.google.appengine.api.channel.ChannelMessage;
 import com.google.appengine.api.channel.ChannelServiceFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServlet;
@@ -47,15 +57,95 @@ public class SendServlet extends HttpServlet {
     private static final String DEVICE_NOT_REGISTERED_STATUS = "DEVICE_NOT_REGISTERED";
     private static final String ERROR_STATUS = "ERROR";
 
+    static final int MAX_BATCH_LINKS = 100;
+
+    /**
+     * Admission control for /send - see ConcurrencyLimiter.
+     */
+    private static final ConcurrencyLimiter limiter = new ConcurrencyLimiter("send");
+
+    // For urlType(), compiled once.
+    private static final Pattern PHONE_PATTERN =
+            Pattern.compile("([Tt]el[:]?)?\\s?[+]?(\\(?[0-9|\\s|\\-|\\.]\\)?)+");
+    private static final Pattern MAPS_PATTERN =
+            Pattern.compile("http://maps\\.google\\.[a-z]{2,3}(\\.[a-z]{2})?[/?].*");
+    private static final Pattern MAPS_PATH_PATTERN =
+            Pattern.compile("http://www\\.google\\.[a-z]{2,3}(\\.[a-z]{2})?/maps.*");
+    private static final Pattern YOUTUBE_PATTERN =
+            Pattern.compile("http://www\\.youtube\\.[a-z]{2,3}(\\.[a-z]{2})?/.*");
+
     // GET not supported
 
     @Override
-    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    public void doPost(HttpServletRequest req, final HttpServletResponse resp)
+            throws IOException {
         resp.setContentType("text/plain");
 
-        // Authenticate and fetch DeviceInfo
-        RequestInfo reqInfo = RequestInfo.processRequest(req, resp, getServletContext());
-        if (reqInfo == null) {
+        // Authenticate, check the rate limits, fetch DeviceInfo, then send -
+        // see RequestPipeline.
+        final String ip = req.getRemoteAddr();
+        RequestInfo.Admission rateLimit = new RequestInfo.Admission() {
+            @Override
+            public boolean admit(RequestInfo reqInfo) throws IOException {
+                JSONArray links = reqInfo.getJsonArray("links");
+                return checkRateLimit(reqInfo.userName, ip,
+                        links != null ? Math.max(1, links.size()) : 1, resp);
+            }
+        };
+        RequestPipeline.run(req, resp, Metrics.SEND_REQUEST_MS, limiter,
+                RequestInfo.stages(req, resp, getServletContext(), rateLimit,
+                        new RequestInfo.Handler() {
+                            @Override
+                            public void handle(RequestInfo reqInfo) throws IOException {
+                                handleSend(reqInfo, resp);
+                            }
+                        }));
+    }
+
+    /**
+     * Take 'cost' sends from the buckets of the user and the client IP, with
+     * the limits of the config - see RateLimiter. Nothing is taken from
+     * either bucket when the send is rejected.
+     *
+     * @param ip may be null
+     * @return false if over a limit - a 429 was sent.
+     */
+    protected boolean checkRateLimit(String userName, String ip, int cost,
+                                     HttpServletResponse resp) throws IOException {
+        C2PConfig config = Storage.get(getServletContext()).getConfig();
+        RateLimiter limiter = RateLimiter.get();
+        long wait = 0;
+        if (ip != null) {
+            wait = limiter.acquire(RateLimiter.ipKey(ip), cost,
+                    config.getIpSendsPerMinute(), config.getIpSendBurst());
+        }
+        if (wait == 0) {
+            wait = limiter.acquire(RateLimiter.userKey(userName), cost,
+                    config.getUserSendsPerMinute(), config.getUserSendBurst());
+            if (wait != 0 && ip != null) {
+                limiter.refund(RateLimiter.ipKey(ip), cost,
+                        config.getIpSendsPerMinute(), config.getIpSendBurst());
+            }
+        }
+        if (wait == 0) {
+            return true;
+        }
+        Metrics.get().counter(Metrics.SEND_RATE_LIMITED).inc();
+        log.warning("Rate limit exceeded by " + userName + " from " + ip);
+        resp.setStatus(429);
+        if (wait > 0) {
+            resp.setHeader("Retry-After", Long.toString((wait + 999) / 1000));
+            resp.getWriter().println(ERROR_STATUS + " (Rate limit exceeded)");
+        } else {
+            resp.getWriter().println(ERROR_STATUS + " (Too many links for the rate limit)");
+        }
+        return false;
+    }
+
+    private void handleSend(RequestInfo reqInfo, HttpServletResponse resp) throws IOException {
+        JSONArray links = reqInfo.getJsonArray("links");
+        if (links != null) {
+            doBatchSend(links, reqInfo, resp);
             return;
         }
 
@@ -79,6 +169,33 @@ public class SendServlet extends HttpServlet {
 
         String deviceType = reqInfo.getParameter("deviceType");
 
+        if ("1".equals(reqInfo.getParameter("async"))) {
+            // Return as soon as the link is queued - delivery happens in
+            // SendTaskServlet, at the rate of the queue.
+            DedupeWindow dedupe = DedupeWindow.get();
+            long fingerprint = DedupeWindow.fingerprint(reqInfo.userName, url, sel,
+                    deviceNames, deviceType);
+            String previous = dedupe.begin(fingerprint);
+            if (previous != null) {
+                log.info("Duplicate send suppressed for " + reqInfo.userName);
+                Metrics.get().counter(Metrics.SEND_DUPLICATES).inc();
+                resp.getWriter().println(previous);
+                return;
+            }
+            String requestId;
+            try {
+                requestId = SendTaskServlet.enqueue(reqInfo.userName, url, title, sel,
+                        deviceName, deviceType, "1".equals(reqInfo.getParameter("debug")));
+            } catch (RuntimeException e) {
+                dedupe.cancel(fingerprint);
+                throw e;
+            }
+            String result = OK_STATUS + " " + requestId;
+            dedupe.complete(fingerprint, result);
+            resp.getWriter().println(result);
+            return;
+        }
+
         String id = doSendToDevice(url, title, sel, reqInfo,
                 deviceNames, deviceType);
 
@@ -89,31 +206,209 @@ public class SendServlet extends HttpServlet {
         resp.getWriter().println(id);
     }
 
-    static Sender getSender(ServletContext ctx) {
-        Sender sender = (Sender) ctx.getAttribute(Sender.class.getName());
-        if (sender == null) {
-            C2PConfig config = Storage.get(ctx).getConfig();
-            sender = new Sender(config.getAuthToken());
-            ctx.setAttribute(Sender.class.getName(), sender);
+    /**
+     * Batch form: a JSON body with a 'links' array of {url, title, sel}
+     * objects, and the optional deviceName/deviceType filters applying to
+     * all of them. Auth and device loading are done once for the batch.
+     *
+     * The response is a JSON object with a 'results' array, with the status
+     * of each link in the same order.
+     */
+    @SuppressWarnings("unchecked")
+    private void doBatchSend(JSONArray links, RequestInfo reqInfo, HttpServletResponse resp)
+            throws IOException {
+        if (links.size() > MAX_BATCH_LINKS) {
+            resp.setStatus(400);
+            resp.getWriter().println(ERROR_STATUS + " (Too many links, max " +
+                    MAX_BATCH_LINKS + ")");
+            return;
         }
-        return sender;
+        String deviceName = reqInfo.getParameter("deviceName");
+        String[] deviceNames = deviceName != null ?
+                deviceName.split(",") : null;
+        String deviceType = reqInfo.getParameter("deviceType");
+        boolean async = "1".equals(reqInfo.getParameter("async"));
+        boolean debug = "1".equals(reqInfo.getParameter("debug"));
+
+        String[] statuses = new String[links.size()];
+        DedupeWindow dedupe = DedupeWindow.get();
+        long[] fingerprints = new long[links.size()];
+        List<TaskOptions> tasks = new ArrayList<TaskOptions>();
+        List<Integer> taskLinks = new ArrayList<Integer>();
+
+        for (int i = 0; i < links.size(); i++) {
+            Object linkObj = links.get(i);
+            JSONObject link = linkObj instanceof JSONObject ? (JSONObject) linkObj : null;
+            String url = link == null ? null : stringValue(link.get("url"));
+            if (url == null) {
+                statuses[i] = ERROR_STATUS + " (Must specify url)";
+                continue;
+            }
+            String title = stringValue(link.get("title"));
+            if (title == null) title = "";
+            String sel = stringValue(link.get("sel"));
+            if (sel == null) sel = "";
+
+            if (!async) {
+                // Devices were loaded once, and are pruned as we go.
+                try {
+                    statuses[i] = doSendToDevice(url, title, sel, reqInfo, deviceNames, deviceType);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Error sending batch link to " + reqInfo.userName, e);
+                    statuses[i] = ERROR_STATUS + " (" + e.getMessage() + ")";
+                }
+                continue;
+            }
+
+            fingerprints[i] = DedupeWindow.fingerprint(reqInfo.userName, url, sel,
+                    deviceNames, deviceType);
+            String previous = dedupe.begin(fingerprints[i]);
+            if (previous != null) {
+                Metrics.get().counter(Metrics.SEND_DUPLICATES).inc();
+                statuses[i] = previous;
+                continue;
+            }
+            tasks.add(SendTaskServlet.newTask(reqInfo.userName, url, title, sel,
+                    deviceName, deviceType, debug));
+            taskLinks.add(i);
+        }
+
+        if (!tasks.isEmpty()) {
+            // One queue call for all the links.
+            List<String> requestIds;
+            try {
+                requestIds = SendTaskServlet.enqueueAll(tasks);
+            } catch (RuntimeException e) {
+                for (int i : taskLinks) {
+                    dedupe.cancel(fingerprints[i]);
+                }
+                throw e;
+            }
+            for (int t = 0; t < taskLinks.size(); t++) {
+                int i = taskLinks.get(t);
+                statuses[i] = OK_STATUS + " " + requestIds.get(t);
+                dedupe.complete(fingerprints[i], statuses[i]);
+            }
+        }
+
+        JSONArray results = new JSONArray();
+        for (int i = 0; i < statuses.length; i++) {
+            JSONObject result = new JSONObject();
+            Object linkObj = links.get(i);
+            if (linkObj instanceof JSONObject) {
+                result.put("url", ((JSONObject) linkObj).get("url"));
+            }
+            result.put("status", statuses[i]);
+            results.add(result);
+        }
+        JSONObject res = new JSONObject();
+        res.put("results", results);
+        resp.setContentType("application/json");
+        res.writeJSONString(resp.getWriter());
+    }
+
+    private static String stringValue(Object value) {
+        return value == null ? null : value.toString();
     }
 
+    static Sender getSender(ServletContext ctx) {
+        return Storage.get(ctx).getConfigHolder().getSender();
+    }
+
+    /**
+     * Sender for the GCM requests - the warmup request uses one with a
+     * NoopTransport.
+     */
+    protected Sender getSender() {
+        return getSender(getServletContext());
+    }
+
+    /**
+     * Whether identical sends in the DedupeWindow should be suppressed.
+     */
+    protected boolean isDedupeEnabled() {
+        return true;
+    }
+
+    /**
+     * Send the link to the user's devices, unless the same link was sent to
+     * the same devices within the DedupeWindow - in which case the result of
+     * the original send is returned.
+     */
     protected String doSendToDevice(String url, String title,
                                     String sel, RequestInfo reqInfo,
                                     String deviceNames[], String deviceType) throws IOException {
+        return doSendToDevice(url, title, sel, reqInfo, deviceNames, deviceType, 0);
+    }
+
+    /**
+     * @param attempt number of earlier failed attempts, 0 except for retries
+     *     from the task queue.
+     */
+    protected String doSendToDevice(String url, String title,
+                                    String sel, RequestInfo reqInfo,
+                                    String deviceNames[], String deviceType,
+                                    int attempt) throws IOException {
+        if (!isDedupeEnabled()) {
+            return sendToDevices(url, title, sel, reqInfo, deviceNames, deviceType, attempt);
+        }
+
+        DedupeWindow dedupe = DedupeWindow.get();
+        long fingerprint = DedupeWindow.fingerprint(reqInfo.userName, url, sel,
+                deviceNames, deviceType);
+        String previous = dedupe.begin(fingerprint);
+        if (previous != null) {
+            log.info("Duplicate send suppressed for " + reqInfo.userName);
+            Metrics.get().counter(Metrics.SEND_DUPLICATES).inc();
+            return previous;
+        }
+        String result = null;
+        try {
+            result = sendToDevices(url, title, sel, reqInfo, deviceNames, deviceType, attempt);
+            return result;
+        } finally {
+            if (result == null || result.startsWith(ERROR_STATUS)) {
+                // Failed - let the client try again.
+                dedupe.cancel(fingerprint);
+            } else {
+                dedupe.complete(fingerprint, result);
+            }
+        }
+    }
+
+    private String sendToDevices(String url, String title,
+                                 String sel, RequestInfo reqInfo,
+                                 String deviceNames[], String deviceType,
+                                 int attempt) throws IOException {
+        reqInfo.sampleLatency();
 
         // ok = we sent to at least one device.
         boolean ok = false;
 
         // Send push message to phone
-        Sender sender = getSender(getServletContext());
+        Sender sender = getSender();
         Object res = null;
 
-        String collapseKey = "" + url.hashCode();
+        // Same for all forms of the URL, GCM only keeps the last one.
+        String collapseKey = Long.toHexString(
+                DedupeWindow.fingerprint(DedupeWindow.normalizeUrl(url)));
 
         boolean reqDebug = "1".equals(reqInfo.getParameter("debug"));
 
+        // Devices that failed with a transient error, sent again later by
+        // RetryScheduler.
+        List<String> retryRegIds = new ArrayList<String>();
+        HttpTransport.get().takeRetryAfterMs(); // reset
+
+        // GCM devices are not sent inline - they're grouped by the value of
+        // the 'debug' flag and sent with one multicast request per group.
+        List<DeviceInfo> gcmDevices = new ArrayList<DeviceInfo>();
+        List<DeviceInfo> gcmDebugDevices = new ArrayList<DeviceInfo>();
+
+        // Canonical ids and dead registrations, applied after the request.
+        List<RegistryWriteBehind.Action> maintenance =
+                new ArrayList<RegistryWriteBehind.Action>();
+
         int deviceCount = 0;
         Iterator<DeviceInfo> iterator = reqInfo.devices.iterator();
         while (iterator.hasNext()) {
@@ -140,14 +435,24 @@ public class SendServlet extends HttpServlet {
                 res = doSendViaBrowserChannel(url, deviceInfo);
             } else if (deviceInfo.getType().equals(DeviceInfo.TYPE_CHROME)) {
                 // TODO: for CHROME2 - use webpush or GCM
+            } else if (!deviceInfo.isC2DM()) {
+                if (deviceInfo.getDebug() || reqDebug) {
+                    gcmDebugDevices.add(deviceInfo);
+                } else {
+                    gcmDevices.add(deviceInfo);
+                }
+                continue;
             } else {
-                res = doSendViaGoogleCloud(url, title, sel, sender, collapseKey,
-                        deviceInfo, reqDebug, deviceInfo.getType());
+                res = doSendViaC2DM(url, title, sel, collapseKey, deviceInfo, reqDebug);
             }
 
             if (res instanceof Boolean) {
                 ok = (Boolean) res;
                 log.info("Link sent to phone: " + ok + "! collapse_key:" + collapseKey);
+                if (!ok && deviceInfo.isC2DM()) {
+                    // 5xx from the C2DM server
+                    retryRegIds.add(deviceInfo.getDeviceRegistrationID());
+                }
             } else {
                 log.fine("Non-boolean send result: " + res);
                 // C2DM error
@@ -158,45 +463,82 @@ public class SendServlet extends HttpServlet {
                     String error = "" + ex.getMessage();
                     if (error.equals(Constants.ERROR_NOT_REGISTERED) || error.equals(Constants.ERROR_INVALID_REGISTRATION)) {
                         // Prune device, it no longer works
-                        reqInfo.deleteRegistration(deviceInfo.getDeviceRegistrationID(),
-                                deviceInfo.getType());
+                        maintenance.add(RegistryWriteBehind.Action.delete(deviceInfo));
                         iterator.remove();
                         deviceCount--;
                     } else {
+                        RegistryWriteBehind.submit(maintenance);
                         throw ex;
                     }
                 }
-                // GCM result.
-                if (res instanceof Result) {
-                    log.info("GCM send result: " + res);
-                    Result result = (Result) res;
-                    String regId = deviceInfo.getDeviceRegistrationID();
-                    if (result.getMessageId() != null) {
-                        ok = true;
-                        String canonicalRegId = result.getCanonicalRegistrationId();
-                        if (canonicalRegId != null) {
-                            // same device has more than on registration id: update it
-                            log.finest("canonicalRegId " + canonicalRegId);
-                            Storage.get(getServletContext()).updateRegistration(reqInfo.userName,
-                                    regId, canonicalRegId);
-                        }
+            }
+        }
+
+        String gcmError = null;
+        for (List<DeviceInfo> group : Arrays.asList(gcmDevices, gcmDebugDevices)) {
+            if (group.isEmpty()) {
+                continue;
+            }
+            MulticastResult multicastResult = doSendViaGoogleCloud(url, title, sel, sender,
+                    collapseKey, group, group == gcmDebugDevices, retryRegIds);
+            if (multicastResult == null) {
+                continue;
+            }
+            log.info("GCM send result: " + multicastResult);
+
+            // Results are in the same order as the registration ids we sent.
+            List<Result> results = multicastResult.getResults();
+            for (int i = 0; i < group.size() && i < results.size(); i++) {
+                DeviceInfo deviceInfo = group.get(i);
+                Result result = results.get(i);
+                String regId = deviceInfo.getDeviceRegistrationID();
+                if (result.getMessageId() != null) {
+                    ok = true;
+                    String canonicalRegId = result.getCanonicalRegistrationId();
+                    if (canonicalRegId != null) {
+                        // same device has more than on registration id: update it
+                        log.finest("canonicalRegId " + canonicalRegId);
+                        maintenance.add(RegistryWriteBehind.Action.update(deviceInfo,
+                                canonicalRegId));
+                    }
+                } else {
+                    String error = result.getErrorCodeName();
+                    if (error.equals(Constants.ERROR_NOT_REGISTERED) || error.equals(Constants.ERROR_INVALID_REGISTRATION)) {
+                        // Prune device, it no longer works
+                        maintenance.add(RegistryWriteBehind.Action.delete(deviceInfo));
+                        reqInfo.devices.remove(deviceInfo);
+                        deviceCount--;
+                    } else if (error.equals(Constants.ERROR_UNAVAILABLE) ||
+                            error.equals(Constants.ERROR_INTERNAL_SERVER_ERROR)) {
+                        retryRegIds.add(regId);
                     } else {
-                        String error = result.getErrorCodeName();
-                        if (error.equals(Constants.ERROR_NOT_REGISTERED) || error.equals(Constants.ERROR_INVALID_REGISTRATION)) {
-                            // Prune device, it no longer works
-                            reqInfo.deleteRegistration(regId, deviceInfo.getType());
-                            iterator.remove();
-                            deviceCount--;
-                        } else {
-                            log.severe("Error sending message to device " + regId
-                                    + ": " + error);
-                            throw new IOException(error);
+                        log.severe("Error sending message to device " + regId
+                                + ": " + error);
+                        if (gcmError == null) {
+                            gcmError = error;
                         }
                     }
                 }
             }
         }
 
+        RegistryWriteBehind.submit(maintenance);
+
+        if (!retryRegIds.isEmpty()) {
+            if (RetryScheduler.schedule(reqInfo.userName, url, title, sel, retryRegIds,
+                    reqDebug, attempt,
+                    HttpTransport.get().takeRetryAfterMs())) {
+                // Will be delivered later.
+                ok = true;
+            }
+        }
+
+        if (gcmError != null && !ok) {
+            // Other devices in the multicast were still processed - canonical
+            // ids updated and dead registrations pruned.
+            throw new IOException(gcmError);
+        }
+
         if (ok) {
             // TODO: return a count of devices we sent to, maybe names as well
             return OK_STATUS;
@@ -213,10 +555,12 @@ public class SendServlet extends HttpServlet {
         }
     }
 
-    private Object doSendViaGoogleCloud(String url, String title, String sel, Sender push,
-                                        String collapseKey, DeviceInfo deviceInfo, boolean reqDebug, String deviceType) {
-
-        // Trim title, sel if needed.
+    /**
+     * Trim title and sel so the payload fits in the 1024 bytes C2DM/GCM limit.
+     *
+     * @return { title, sel }
+     */
+    private static String[] trimPayload(String url, String title, String sel) {
         if (url.length() + title.length() + sel.length() > 1000) {
             // Shorten the title - C2DM has a 1024 limit, some padding for keys
             if (title.length() > 16) {
@@ -231,58 +575,106 @@ public class SendServlet extends HttpServlet {
                 } // else: we'll get an error sending
             }
         }
+        return new String[] {title, sel};
+    }
 
+    private Object doSendViaC2DM(String url, String title, String sel,
+                                 String collapseKey, DeviceInfo deviceInfo, boolean reqDebug) {
+        String[] trimmed = trimPayload(url, title, sel);
         String regId = deviceInfo.getDeviceRegistrationID();
         String debug = (deviceInfo.getDebug()) || reqDebug ? "1" : null;
-        Object res;
-        if (deviceInfo.isC2DM()) {
-            log.fine("Sending C2DM message");
-            res = C2DMessaging.sendNoRetry(
-                    Storage.get(getServletContext()),
-                    regId,
-                    collapseKey,
-                    "url", url,
-                    "title", title,
-                    "sel", sel,
-                    "debug", debug);
-        } else {
-            log.fine("Sending GCM message");
-            Builder builder = new Message.Builder()
-                    .collapseKey(collapseKey)
-                    .addData("url", url)
-                    .addData("title", title)
-                    .addData("sel", sel);
-            if (debug != null) {
-                builder.addData("debug", debug);
-            }
-            Message message = builder.build();
-            try {
-                res = push.send(message, regId, 2 /* retries */);
-            } catch (IOException e) {
-                log.log(Level.SEVERE, "Error sending " + message + " to " + regId, e);
-                return null;
-            }
+        log.fine("Sending C2DM message");
+        long start = System.nanoTime();
+        Object res = C2DMessaging.sendNoRetry(
+                Storage.get(getServletContext()),
+                regId,
+                collapseKey,
+                "url", url,
+                "title", trimmed[0],
+                "sel", trimmed[1],
+                "debug", debug);
+        Metrics.get().histogram(Metrics.SEND_C2DM_MS).observeSince(start);
+        if (!Boolean.TRUE.equals(res)) {
+            Metrics.get().counter(Metrics.SEND_C2DM_ERRORS).inc();
+        }
+        return res;
+    }
 
+    /**
+     * Send the same message to a group of GCM devices, using a single multicast
+     * request.
+     *
+     * No retries on this thread - if the whole request fails with a transient
+     * error the registration ids are added to retryRegIds.
+     *
+     * @return the multicast result, with one Result per device in the same order,
+     *     or null if the request failed.
+     */
+    private MulticastResult doSendViaGoogleCloud(String url, String title, String sel, Sender push,
+                                                 String collapseKey, List<DeviceInfo> devices,
+                                                 boolean debug, List<String> retryRegIds) {
+        String[] trimmed = trimPayload(url, title, sel);
+
+        List<String> regIds = new ArrayList<String>(devices.size());
+        for (DeviceInfo deviceInfo : devices) {
+            regIds.add(deviceInfo.getDeviceRegistrationID());
         }
 
-        return res;
+        log.fine("Sending GCM message to " + regIds.size() + " devices");
+        Builder builder = new Message.Builder()
+                .collapseKey(collapseKey)
+                .addData("url", url)
+                .addData("title", trimmed[0])
+                .addData("sel", trimmed[1]);
+        if (debug) {
+            builder.addData("debug", "1");
+        }
+        Message message = builder.build();
+        long start = System.nanoTime();
+        try {
+            MulticastResult res = push.sendNoRetry(message, regIds);
+            Metrics.get().counter(Metrics.SEND_GCM_ERRORS).add(res.getFailure());
+            return res;
+        } catch (InvalidRequestException e) {
+            Metrics.get().counter(Metrics.SEND_GCM_ERRORS).add(regIds.size());
+            log.log(Level.SEVERE, "Error sending " + message + " to " + regIds, e);
+            if (e.getHttpStatusCode() >= 500) {
+                retryRegIds.addAll(regIds);
+            }
+            return null;
+        } catch (IOException e) {
+            Metrics.get().counter(Metrics.SEND_GCM_ERRORS).add(regIds.size());
+            log.log(Level.SEVERE, "Error sending " + message + " to " + regIds, e);
+            retryRegIds.addAll(regIds);
+            return null;
+        } finally {
+            Metrics.get().histogram(Metrics.SEND_GCM_MS).observeSince(start);
+        }
     }
 
     private boolean doSendViaBrowserChannel(String url, DeviceInfo deviceInfo) {
         String channelToken = deviceInfo.getDeviceRegistrationID();
-        ChannelServiceFactory.getChannelService().sendMessage(
-                new ChannelMessage(channelToken, url));
+        long start = System.nanoTime();
+        try {
+            ChannelServiceFactory.getChannelService().sendMessage(
+                    new ChannelMessage(channelToken, url));
+        } catch (RuntimeException e) {
+            Metrics.get().counter(Metrics.SEND_CHANNEL_ERRORS).inc();
+            throw e;
+        } finally {
+            Metrics.get().histogram(Metrics.SEND_CHANNEL_MS).observeSince(start);
+        }
         return true;
     }
 
-    private String urlType(String url, String sel) {
+    static String urlType(String url, String sel) {
         String type = "link";  // default
-        if (sel != null && sel.matches("([Tt]el[:]?)?\\s?[+]?(\\(?[0-9|\\s|\\-|\\.]\\)?)+")) {
+        if (sel != null && PHONE_PATTERN.matcher(sel).matches()) {
             type = "phone number";
-        } else if (url.matches("http://maps\\.google\\.[a-z]{2,3}(\\.[a-z]{2})?[/?].*") ||
-                url.matches("http://www\\.google\\.[a-z]{2,3}(\\.[a-z]{2})?/maps.*")) {
+        } else if (MAPS_PATTERN.matcher(url).matches() ||
+                MAPS_PATH_PATTERN.matcher(url).matches()) {
             type = "Maps";
-        } else if (url.matches("http://www\\.youtube\\.[a-z]{2,3}(\\.[a-z]{2})?/.*")) {
+        } else if (YOUTUBE_PATTERN.matcher(url).matches()) {
             type = "YouTube";
         }
         return type;
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Worker for the 'c2dm' task queue - delivers links that were accepted by
+ * SendServlet in async mode.
+ *
+ * The task only holds the (already authenticated) user and the link, devices
+ * are loaded when the task runs. The queue rate in queue.xml throttles the
+ * sends.
+ */
+@SuppressWarnings("serial")
+public class SendTaskServlet extends SendServlet {
+    static final String QUEUE_NAME = "c2dm";
+    static final String TASK_URL = "/tasks/send";
+
+    static final String PARAM_USER = "user";
+
+    /**
+     * Add a send task to the queue.
+     *
+     * @return the task name, used as request id.
+     */
+    static String enqueue(String userName, String url, String title, String sel,
+                          String deviceName, String deviceType, boolean debug) {
+        TaskOptions task = newTask(userName, url, title, sel, deviceName, deviceType, debug);
+        Queue queue = QueueFactory.getQueue(QUEUE_NAME);
+        TaskHandle handle = queue.add(task);
+        return handle.getName();
+    }
+
+    /**
+     * Add several send tasks with one queue call.
+     *
+     * @return the task names, in the same order.
+     */
+    static List<String> enqueueAll(List<TaskOptions> tasks) {
+        Queue queue = QueueFactory.getQueue(QUEUE_NAME);
+        List<String> names = new ArrayList<String>(tasks.size());
+        for (TaskHandle handle : queue.add(tasks)) {
+            names.add(handle.getName());
+        }
+        return names;
+    }
+
+    static TaskOptions newTask(String userName, String url, String title, String sel,
+                               String deviceName, String deviceType, boolean debug) {
+        TaskOptions task = TaskOptions.Builder.withUrl(TASK_URL)
+                .param(PARAM_USER, userName)
+                .param("url", url)
+                .param("title", title)
+                .param("sel", sel);
+        if (deviceName != null) {
+            task.param("deviceName", deviceName);
+        }
+        if (deviceType != null) {
+            task.param("deviceType", deviceType);
+        }
+        if (debug) {
+            task.param("debug", "1");
+        }
+        return task;
+    }
+
+    /**
+     * Duplicates were suppressed when the task was added, and retries must
+     * not be.
+     */
+    @Override
+    protected boolean isDedupeEnabled() {
+        return false;
+    }
+
+    @Override
+    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/plain");
+
+        // Only reachable by the task queue (admin constraint in web.xml), the
+        // user was authenticated when the task was added.
+        String userName = req.getParameter(PARAM_USER);
+        String url = req.getParameter("url");
+        if (userName == null || url == null) {
+            // Don't retry - the task will never succeed.
+            log.severe("Invalid send task " + req.getHeader("X-AppEngine-TaskName"));
+            resp.getWriter().println("ERROR (Invalid task)");
+            return;
+        }
+
+        String sel = req.getParameter("sel");
+        if (sel == null) sel = "";
+
+        String title = req.getParameter("title");
+        if (title == null) title = "";
+
+        String deviceName = req.getParameter("deviceName");
+        String[] deviceNames = deviceName != null ?
+                deviceName.split(",") : null;
+
+        String deviceType = req.getParameter("deviceType");
+
+        @SuppressWarnings("unchecked")
+        RequestInfo reqInfo = new RequestInfo(userName, req.getParameterMap(),
+                getServletContext());
+
+        // Retries only go to the devices that failed.
+        String[] regIds = req.getParameterValues(RetryScheduler.PARAM_REGID);
+        if (regIds != null) {
+            Set<String> retryRegIds = new HashSet<String>(Arrays.asList(regIds));
+            Iterator<DeviceInfo> iterator = reqInfo.devices.iterator();
+            while (iterator.hasNext()) {
+                if (!retryRegIds.contains(iterator.next().getDeviceRegistrationID())) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        int attempt = 0;
+        String attemptParam = req.getParameter(RetryScheduler.PARAM_ATTEMPT);
+        if (attemptParam != null) {
+            try {
+                attempt = Math.max(0, Integer.parseInt(attemptParam));
+            } catch (NumberFormatException e) {
+                log.warning("Invalid attempt " + attemptParam + " in send task");
+            }
+        }
+
+        // IOException results in a 500, and the queue will retry the task.
+        String id = doSendToDevice(url, title, sel, reqInfo,
+                deviceNames, deviceType, attempt);
+        log.info("Send task " + req.getHeader("X-AppEngine-TaskName") + " for " +
+                userName + ": " + id);
+        resp.getWriter().println(id);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Cache shared by all instances - memcache on App Engine.
+ *
+ * Values may be evicted at any time, callers must handle misses. Errors
+ * are treated as misses too.
+ */
+public interface SharedCache {
+
+    /**
+     * @return the values found, missing keys are not included.
+     */
+    Map<String, Object> getAll(Collection<String> keys);
+
+    void put(String key, Object value, int expirationSeconds);
+
+    /**
+     * Atomically add delta to a counter, creating it with the initial value
+     * if missing.
+     *
+     * @return the new value, or null if the cache is not available.
+     */
+    Long increment(String key, long delta, long initialValue);
+}
@@ -2,114 +2,225 @@ package com.google.android.chrometophone.server;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.utils.SystemProperty;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.jdo.JDOHelper;
-import javax.jdo.JDOObjectNotFoundException;
-import javax.jdo.PersistenceManager;
-import javax.jdo.PersistenceManagerFactory;
-import javax.jdo.Query;
 import javax.servlet.ServletContext;
 
 /**
- * Helpers for data storage. Hides PersistentManager - for possible
- * migration.
+ * Helpers for data storage. Persistence is done by a StorageBackend - the
+ * datastore API by default, or in-memory for load tests - this class adds
+ * the caches and metrics.
+ *
+ * The backend is selected with the 'storage' context param or the
+ * 'c2p.storage' system property: 'datastore', 'jdo', 'deviceset', 'memory'
+ * or 'log'.
+ * The 'log' backend keeps its file in the directory set by 'storage.dir'
+ * or 'c2p.storage.dir'. Other backends can be used by class name - the
+ * class needs a constructor taking the ServletContext, or none.
  */
 public class Storage {
     // refactored from C2DMessaging
     private static final String TOKEN_FILE = "/WEB-INF/dataMessagingToken.txt";
     private static final Logger log = Logger.getLogger(Storage.class.getName());
 
+    static final String PARAM_BACKEND = "storage";
+    public static final String PROPERTY_BACKEND = "c2p.storage";
+    static final String BACKEND_DATASTORE = "datastore";
+    static final String BACKEND_JDO = "jdo";
+    static final String BACKEND_DEVICE_SET = "deviceset";
+    static final String BACKEND_MEMORY = "memory";
+    public static final String BACKEND_LOG = "log";
+    static final String PARAM_DIR = "storage.dir";
+    static final String PROPERTY_DIR = "c2p.storage.dir";
+
     private final ServletContext ctx;
 
+    private final StorageBackend backend;
+
+    private final DeviceCache deviceCache;
+
+    private final ConfigHolder configHolder =
+            new ConfigHolder(this, ConfigHolder.DEFAULT_TTL_MS);
+
     public Storage(ServletContext ctx) {
+        this(ctx, new DatastoreStorageBackend(), new MemcacheSharedCache("devices"));
+    }
+
+    /**
+     * @param sharedCache L2 for the device cache - LocalSharedCache can be
+     * used in tests.
+     */
+    public Storage(ServletContext ctx, StorageBackend backend, SharedCache sharedCache) {
         this.ctx = ctx;
+        this.backend = backend;
+        this.deviceCache = new DeviceCache(sharedCache);
+    }
+
+    public StorageBackend getBackend() {
+        return backend;
     }
 
     /**
-     * Initialize PMF - we use a context attribute, so other servlets can
-     * be share the same instance. This is similar with a shared static
-     * field, but avoids dependencies.
+     * True if devices are stored as DeviceInfo entities, which can be
+     * queried with the datastore API.
      */
-    private static PersistenceManagerFactory getPMF(ServletContext ctx) {
-        PersistenceManagerFactory pmfFactory =
-                (PersistenceManagerFactory) ctx.getAttribute(
-                        PersistenceManagerFactory.class.getName());
-        if (pmfFactory == null) {
-            pmfFactory = JDOHelper
-                    .getPersistenceManagerFactory("transactions-optional");
-            ctx.setAttribute(
-                    PersistenceManagerFactory.class.getName(),
-                    pmfFactory);
-        }
-        return pmfFactory;
+    public boolean hasDeviceEntities() {
+        return backend instanceof DatastoreStorageBackend ||
+                backend instanceof JdoStorageBackend;
+    }
+
+    public DeviceCache getDeviceCache() {
+        return deviceCache;
+    }
+
+    public ConfigHolder getConfigHolder() {
+        return configHolder;
+    }
+
+    /**
+     * User part of the device key - 'user#deviceId', or just 'user' for
+     * old registrations.
+     */
+    static String getUser(Key deviceKey) {
+        return getUser(deviceKey.getName());
+    }
+
+    static String getUser(String name) {
+        int idx = name.indexOf('#');
+        return idx < 0 ? name : name.substring(0, idx);
     }
 
     public static Storage get(ServletContext ctx) {
         Storage storage = (Storage) ctx.getAttribute(Storage.class.getName());
         if (storage == null) {
-            storage = new Storage(ctx);
+            storage = create(ctx);
             ctx.setAttribute(Storage.class.getName(), storage);
         }
         return storage;
     }
 
-    public C2PConfig getConfig() {
-        PersistenceManager pm = getPMF(ctx).getPersistenceManager();
-        Key key = KeyFactory.createKey(C2PConfig.class.getSimpleName(), "default");
-        C2PConfig config = null;
-        try {
-            config = pm.getObjectById(C2PConfig.class, key);
-        } catch (JDOObjectNotFoundException e) {
-            config = new C2PConfig();
-            config.setKey(key);
+    private static Storage create(ServletContext ctx) {
+        String name = ctx.getInitParameter(PARAM_BACKEND);
+        if (name == null) {
+            name = System.getProperty(PROPERTY_BACKEND, BACKEND_DATASTORE);
+        }
+        if (BACKEND_JDO.equals(name)) {
+            return new Storage(ctx, new JdoStorageBackend(ctx),
+                    new MemcacheSharedCache("devices"));
+        }
+        if (BACKEND_DEVICE_SET.equals(name)) {
+            return new Storage(ctx, new DeviceSetStorageBackend(ctx),
+                    new MemcacheSharedCache("devices"));
+        }
+        if (BACKEND_MEMORY.equals(name)) {
+            log.warning("Using in-memory storage, registrations will be lost on restart");
+            return new Storage(ctx, new MemoryStorageBackend(), new LocalSharedCache());
+        }
+        if (BACKEND_LOG.equals(name)) {
+            String dir = ctx.getInitParameter(PARAM_DIR);
+            if (dir == null) {
+                dir = System.getProperty(PROPERTY_DIR, "registry");
+            }
+            try {
+                return new Storage(ctx, new MappedLogStorageBackend(new File(dir), false),
+                        new LocalSharedCache());
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't open registry in " + dir, e);
+            }
+        }
+        if (name.indexOf('.') > 0) {
+            StorageBackend backend = newBackend(name, ctx);
+            return new Storage(ctx, backend, onAppEngine() ?
+                    new MemcacheSharedCache("devices") : new LocalSharedCache());
+        }
+        if (!BACKEND_DATASTORE.equals(name)) {
+            log.warning("Unknown storage backend " + name + ", using " + BACKEND_DATASTORE);
+        }
+        return new Storage(ctx);
+    }
 
-            // First invocation or in local test mode
-            // Must be in classpath, before sending. Do not checkin !
+    private static StorageBackend newBackend(String className, ServletContext ctx) {
+        try {
+            Class<?> cls = Class.forName(className);
             try {
-                // https://cloud.google.com/appengine/docs/java/config/appconfig
-                // Use ServletContext
-                InputStream is = ctx.getResourceAsStream(TOKEN_FILE);
-                String token;
-                if (is != null) {
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-                    token = reader.readLine();
-                } else {
-                    // happens on developement: delete entity from viewer, change
-                    // token below, and run it again
-                    log.log(Level.WARNING, "File " + TOKEN_FILE +
-                            " not found on classpath, using hardcoded token");
-                    token = "please_change_me";
-                }
-                config.setAuthToken(token);
-            } catch (Throwable t) {
-                log.log(Level.SEVERE,
-                        "Can't load initial token, use admin console", t);
+                return (StorageBackend) cls.getConstructor(ServletContext.class)
+                        .newInstance(ctx);
+            } catch (NoSuchMethodException e) {
+                return (StorageBackend) cls.getConstructor().newInstance();
             }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can't create storage backend " + className, e);
+        }
+    }
 
-            pm.makePersistent(config);
-        } finally {
-            pm.close();
+    /**
+     * False when running in a standalone server - the App Engine services
+     * (memcache, task queues) are not available.
+     */
+    static boolean onAppEngine() {
+        return SystemProperty.environment.value() != null;
+    }
+
+    /**
+     * Cached config - see ConfigHolder.
+     */
+    public C2PConfig getConfig() {
+        return configHolder.get();
+    }
+
+    /**
+     * Read the config from the backend, creating it if missing.
+     */
+    C2PConfig loadConfig() {
+        C2PConfig config = backend.loadConfig();
+        if (config != null) {
+            return config;
+        }
+        Key key = KeyFactory.createKey(C2PConfig.class.getSimpleName(), "default");
+        config = new C2PConfig();
+        config.setKey(key);
+
+        // First invocation or in local test mode
+        // Must be in classpath, before sending. Do not checkin !
+        try {
+            // https://cloud.google.com/appengine/docs/java/config/appconfig
+            // Use ServletContext
+            InputStream is = ctx.getResourceAsStream(TOKEN_FILE);
+            String token;
+            if (is != null) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+                token = reader.readLine();
+            } else {
+                // happens on developement: delete entity from viewer, change
+                // token below, and run it again
+                log.log(Level.WARNING, "File " + TOKEN_FILE +
+                        " not found on classpath, using hardcoded token");
+                token = "please_change_me";
+            }
+            config.setAuthToken(token);
+        } catch (Throwable t) {
+            log.log(Level.SEVERE,
+                    "Can't load initial token, use admin console", t);
         }
 
+        backend.saveConfig(config);
         return config;
     }
 
     public void saveConfig(C2PConfig cfg) {
-        PersistenceManager pm = getPMF(ctx).getPersistenceManager();
-        try {
-            pm.makePersistent(cfg);
-        } finally {
-            pm.close();
-        }
+        backend.saveConfig(cfg);
     }
 
     public void updateRegistration(String userName, String regId, String canonicalRegId) {
@@ -117,21 +228,24 @@ public class Storage {
             return;
         }
         log.fine("Updating regId " + regId + " to canonical " + canonicalRegId);
-        PersistenceManager pm = Storage.getPMF(ctx).getPersistenceManager();
-
-        Query query = pm.newQuery(DeviceInfo.class);
-        query.setFilter("deviceRegistrationID == '" + regId + "'");
-
-        @SuppressWarnings("unchecked")
-        List<DeviceInfo> result = (List<DeviceInfo>) query.execute();
-        DeviceInfo device = (result == null || result.isEmpty()) ? null : result.get(0);
-        query.closeAll();
-
-        device.setDeviceRegistrationID(canonicalRegId);
+        Metrics.get().counter(Metrics.CANONICAL_ID_UPDATES).inc();
+        try {
+            backend.updateRegistration(userName, regId, canonicalRegId);
+        } finally {
+            deviceCache.invalidate(userName);
+        }
+    }
 
-        pm.currentTransaction().begin();
-        pm.makePersistent(device);
-        pm.currentTransaction().commit();
+    /**
+     * @return true if the registration id belongs to a device of the user.
+     */
+    public boolean isRegisteredTo(String regId, String userName) {
+        for (String keyName : backend.findDeviceKeys(regId)) {
+            if (userName.equals(getUser(keyName))) {
+                return true;
+            }
+        }
+        return false;
     }
 
 
@@ -139,75 +253,74 @@ public class Storage {
         if (ctx == null) {
             return;
         }
-        PersistenceManager pm =
-                Storage.getPMF(ctx).getPersistenceManager();
         try {
-            List<DeviceInfo> registrations = getDeviceInfoForUser(pm, userName);
-            for (int i = 0; i < registrations.size(); i++) {
-                DeviceInfo deviceInfo = registrations.get(i);
-                if (deviceInfo.getDeviceRegistrationID().equals(regId)) {
-                    pm.deletePersistent(deviceInfo);
-                    // Keep looping in case of duplicates
-                }
-            }
-        } catch (JDOObjectNotFoundException e) {
-            log.warning("User unknown");
-        } catch (Exception e) {
-            log.warning("Error unregistering device: " + e.getMessage());
+            backend.deleteRegistration(userName, regId);
         } finally {
-            pm.close();
+            deviceCache.invalidate(userName);
         }
-
     }
 
     /**
-     * Helper function - will query all registrations for a user.
+     * Delete the devices with one batch - see StorageBackend.deleteDevices.
      */
-    public static List<DeviceInfo> getDeviceInfoForUser(PersistenceManager pm, String user) {
-        Query query = pm.newQuery(DeviceInfo.class);
-        query.setFilter("key >= '" +
-                user + "' && key < '" + user + "$'");
-        @SuppressWarnings("unchecked")
-        List<DeviceInfo> qresult = (List<DeviceInfo>) query.execute();
-        // Copy to array - we need to close the query
-        List<DeviceInfo> result = new ArrayList<DeviceInfo>();
-        for (DeviceInfo di : qresult) {
-            result.add(di);
+    public void deleteDevices(List<DeviceInfo> devices) {
+        if (devices.isEmpty()) {
+            return;
         }
-        query.closeAll();
-        return result;
-    }
-
-    List<DeviceInfo> loadDevices(String userName) {
-        // Context-shared PMF.
-        PersistenceManager pm =
-                Storage.getPMF(ctx).getPersistenceManager();
-        List<DeviceInfo> devices = null;
         try {
-             devices = getDeviceInfoForUser(pm,
-                    userName);
-            // cleanup for multi-device
-            if (devices.size() > 1) {
-                // Make sure there is no 'bare' registration
-                // Keys are sorted - check the first
-                DeviceInfo first = devices.get(0);
-                Key oldKey = first.getKey();
-                if (oldKey.toString().indexOf("#") < 0) {
-                    log.warning("Removing old-style key " + oldKey.toString());
-                    // multiple devices, first is old-style.
-                    devices.remove(0);
-                    pm.deletePersistent(first);
+            backend.deleteDevices(devices);
+        } finally {
+            Set<String> users = new HashSet<String>();
+            for (DeviceInfo device : devices) {
+                if (users.add(getUser(device.getKey()))) {
+                    deviceCache.invalidate(getUser(device.getKey()));
                 }
             }
-        } catch (Exception e) {
-            log.log(Level.WARNING, "Error loading registrations ", e);
-        } finally {
-            pm.close();
         }
+    }
 
+    List<DeviceInfo> loadDevices(String userName) {
+        long start = System.nanoTime();
+        List<DeviceInfo> devices = deviceCache.get(userName);
+        if (devices != null) {
+            Metrics.get().histogram(Metrics.DEVICE_LOAD_MS).observeSince(start);
+            return devices;
+        }
+        // Read before loading, changes made while loading will bump it.
+        long version = deviceCache.version(userName);
+        long dsStart = System.nanoTime();
+        devices = backend.loadDevices(userName);
+        Metrics.get().histogram(Metrics.DEVICE_LOAD_DATASTORE_MS).observeSince(dsStart);
+        if (devices != null) {
+            deviceCache.put(userName, version, devices);
+        }
+        Metrics.get().histogram(Metrics.DEVICE_LOAD_MS).observeSince(start);
         return devices;
     }
 
+    /**
+     * @return false if the update only moves the timestamp, by less than
+     *     refreshMs.
+     */
+    static boolean needsWrite(DeviceInfo stored, DeviceInfo update, long refreshMs) {
+        if (!equal(stored.getDeviceRegistrationID(), update.getDeviceRegistrationID()) ||
+                !stored.getType().equals(update.getType()) ||
+                !stored.getName().equals(update.getName()) ||
+                !equal(stored.getGcm(), update.getGcm())) {
+            return true;
+        }
+        Date storedTime = stored.getRegistrationTimestamp();
+        Date updateTime = update.getRegistrationTimestamp();
+        if (storedTime == null || updateTime == null) {
+            return storedTime != updateTime;
+        }
+        return updateTime.getTime() - storedTime.getTime() >= refreshMs;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
     public DeviceInfo saveDevice(RequestInfo reqInfo, String deviceType) throws Exception {
 
         String gcm = reqInfo.getParameter("gcm");
@@ -217,35 +330,32 @@ public class Storage {
         if (deviceName == null) {
             deviceName = "Phone";
         }
-        // Context-shared PMF.
-        PersistenceManager pm =
-                Storage.getPMF(ctx).getPersistenceManager();
-        try {
-            // Get device if it already exists, else create
-            Key key = KeyFactory.createKey(DeviceInfo.class.getSimpleName(),
-                    reqInfo.getKey());
-
-            // TODO: this is redundant, initDevices loads all devices for user
-            DeviceInfo device = null;
-            try {
-                device = pm.getObjectById(DeviceInfo.class, key);
-            } catch (JDOObjectNotFoundException e) { }
-            if (device == null) {
-                device = new DeviceInfo(key, reqInfo.deviceRegistrationID);
-                device.setType(deviceType);
-            } else {
-                // update registration id
-                device.setDeviceRegistrationID(reqInfo.deviceRegistrationID);
-                // must update type, as this could be a C2DM to GCM migration
-                device.setType(deviceType);
-                device.setRegistrationTimestamp(new Date());
+        Key key = KeyFactory.createKey(DeviceInfo.class.getSimpleName(),
+                reqInfo.getKey());
+
+        // Sets the timestamp to now. The backend updates the device if it
+        // already exists, else creates it - type must be updated, as this
+        // could be a C2DM to GCM migration.
+        DeviceInfo device = new DeviceInfo(key, reqInfo.deviceRegistrationID);
+        device.setType(deviceType);
+        device.setName(deviceName);  // update display name
+        device.setGcm(isGcm);
+
+        // Re-registrations (chrome on each start, clients after upgrades)
+        // usually change nothing: check the devices loaded by the request
+        // first, they may come from the cache. The backend checks again.
+        long refreshMs = getConfig().getRegistrationRefreshSeconds() * 1000;
+        if (reqInfo.devices != null) {
+            for (DeviceInfo stored : reqInfo.devices) {
+                if (stored.getKey().equals(key) && !needsWrite(stored, device, refreshMs)) {
+                    Metrics.get().counter(Metrics.REGISTRATION_WRITES_SKIPPED).inc();
+                    return stored;
+                }
             }
+        }
 
-            device.setName(deviceName);  // update display name
-            device.setGcm(isGcm);
-            // TODO: only need to write if something changed, for chrome nothing
-            // changes, we just create a new channel
-            pm.makePersistent(device);
+        try {
+            device = backend.saveDevice(device, refreshMs);
 
             // Log only non-GCM devices - to track c2dm is still working
             if (!isGcm) {
@@ -253,8 +363,8 @@ public class Storage {
                         deviceType + "(gcm: " + isGcm + ")");
             }
             return device;
-         } finally {
-            pm.close();
+        } finally {
+            deviceCache.invalidate(getUser(key));
         }
 
     }
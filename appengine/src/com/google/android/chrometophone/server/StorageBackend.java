@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import java.util.List;
+
+/**
+ * Persistence for config and registrations. Storage adds caching on top.
+ *
+ * Device keys are 'user#deviceId' (or just 'user' for old registrations),
+ * the devices of a user are the keys starting with the user name.
+ */
+public interface StorageBackend {
+
+    /**
+     * @return the "default" config, or null if it was never saved.
+     */
+    C2PConfig loadConfig();
+
+    void saveConfig(C2PConfig config);
+
+    /**
+     * @return the devices of the user, sorted by key.
+     */
+    List<DeviceInfo> loadDevices(String userName);
+
+    /**
+     * Insert or update a device. The debug flag of an existing device is
+     * kept, all other properties are replaced. Nothing is written if only
+     * the timestamp changed, by less than refreshMs - see
+     * Storage.needsWrite().
+     *
+     * @return the stored device.
+     */
+    DeviceInfo saveDevice(DeviceInfo device, long refreshMs);
+
+    /**
+     * Delete the user's devices with the given registration id.
+     */
+    void deleteRegistration(String userName, String regId);
+
+    /**
+     * Delete devices by key, with as few calls as possible. Devices whose
+     * registration id changed since they were loaded are kept - they
+     * registered again.
+     *
+     * Throws if a batch can't be deleted - batches before it may already
+     * be gone, so retrying the whole list must be safe.
+     */
+    void deleteDevices(List<DeviceInfo> devices);
+
+    /**
+     * Replace the registration id of the user's devices with the canonical
+     * one returned by GCM.
+     */
+    void updateRegistration(String userName, String regId, String canonicalRegId);
+
+    /**
+     * Reverse index lookup - kept up to date by the methods above.
+     *
+     * @return names of the keys of all devices with the registration id,
+     *     possibly of several users.
+     */
+    List<String> findDeviceKeys(String regId);
+
+    /**
+     * A page of all devices, sorted by key - used to export the registry.
+     *
+     * @param afterKeyName start after this key name, null for the first
+     *     page. The next page starts after the last device returned.
+     * @return up to 'limit' devices, fewer only on the last page.
+     */
+    List<DeviceInfo> listDevices(String afterKeyName, int limit);
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import com.google.android.gcm.server.Sender;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Filter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Warmup request (/_ah/warmup), sent by App Engine to new instances before
+ * they get user traffic. The standalone server calls warmup() before it
+ * starts accepting connections.
+ *
+ * Creates the storage backend (and the JDO PersistenceManagerFactory when
+ * JDO is used), the config and GCM Sender, and fetches the ID token keys.
+ * Then the request parsing and send paths are run in a loop against a
+ * NoopTransport, so they are loaded and compiled before the first user
+ * request. Metrics of these sends are discarded.
+ *
+ * Loaded on startup, which is the start time of FIRST_REQUEST_MS.
+ */
+@SuppressWarnings("serial")
+public class WarmupServlet extends SendServlet {
+    private static final Logger log = Logger.getLogger(WarmupServlet.class.getName());
+
+    static final String WARMUP_USER = "warmup@localhost";
+
+    /**
+     * Sends run by warmup() - enough for the JIT to compile the hot paths.
+     */
+    static final int WARMUP_SENDS = 2000;
+
+    private static final String SAMPLE_BODY =
+            "{\"url\":\"http://www.youtube.com/watch?v=warmup\",\"title\":\"Warmup\"," +
+            "\"sel\":\"+1 (650) 555-0100\",\"deviceType\":\"" + DeviceInfo.TYPE_AC2DM + "\"," +
+            "\"links\":[{\"url\":\"http://maps.google.com/?q=warmup\",\"title\":\"Maps\"}]}";
+
+    /**
+     * Set on the thread running the warmup sends - they log at INFO, and
+     * there is no user traffic yet.
+     */
+    private static final ThreadLocal<Boolean> warming = new ThreadLocal<Boolean>();
+
+    static {
+        final Filter previous = SendServlet.log.getFilter();
+        SendServlet.log.setFilter(new Filter() {
+            @Override
+            public boolean isLoggable(LogRecord record) {
+                if (warming.get() != null &&
+                        record.getLevel().intValue() <= Level.INFO.intValue()) {
+                    return false;
+                }
+                return previous == null || previous.isLoggable(record);
+            }
+        });
+    }
+
+    private Sender noopSender;
+
+    @Override
+    public void init() throws ServletException {
+        Metrics.get().instanceStarted();
+    }
+
+    @Override
+    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/plain");
+        long ms = warmup();
+        resp.getWriter().println("OK " + ms + "ms");
+    }
+
+    @Override
+    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        doGet(req, resp);
+    }
+
+    /**
+     * @return the time taken, in ms.
+     */
+    public synchronized long warmup() {
+        long start = System.nanoTime();
+        ServletContext ctx = getServletContext();
+
+        // Storage backend, config, Sender for the GCM key.
+        Storage storage = Storage.get(ctx);
+        storage.getConfig();
+        getSender(ctx);
+        storage.loadDevices(WARMUP_USER);
+        IdTokenVerifier.get().prefetchKeys();
+
+        noopSender = new PooledSender(storage.getConfig().getAuthToken(), new NoopTransport());
+        List<DeviceInfo> devices = Collections.singletonList(warmupDevice());
+
+        warming.set(Boolean.TRUE);
+        Metrics.get().mute(true);
+        try {
+            for (int i = 0; i < WARMUP_SENDS; i++) {
+                String result = send(devices);
+                if (!result.startsWith("OK")) {
+                    log.warning("Warmup send failed: " + result);
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Warmup send failed", e);
+        } catch (ParseException e) {
+            log.log(Level.WARNING, "Warmup parse failed", e);
+        } finally {
+            Metrics.get().mute(false);
+            warming.remove();
+        }
+
+        long ms = (System.nanoTime() - start) / 1000000;
+        Metrics.get().histogram(Metrics.WARMUP_MS).observe(ms);
+        log.info("Warmup done in " + ms + "ms");
+        return ms;
+    }
+
+    private String send(List<DeviceInfo> devices) throws IOException, ParseException {
+        RequestInfo reqInfo = new RequestInfo(WARMUP_USER, null);
+        reqInfo.jsonParams = RequestInfo.parseJson(new StringReader(SAMPLE_BODY));
+        reqInfo.devices = new ArrayList<DeviceInfo>(devices);
+
+        String url = reqInfo.getParameter("url");
+        String sel = reqInfo.getParameter("sel");
+        urlType(url, sel);
+        JSONArray links = reqInfo.getJsonArray("links");
+        if (links != null) {
+            for (Object link : links) {
+                urlType((String) ((JSONObject) link).get("url"), null);
+            }
+        }
+        return doSendToDevice(url, reqInfo.getParameter("title"), sel, reqInfo,
+                null, reqInfo.getParameter("deviceType"));
+    }
+
+    private static DeviceInfo warmupDevice() {
+        DeviceInfo device = new DeviceInfo(EntityMapper.deviceKey(WARMUP_USER + "#warmup"),
+                "warmup");
+        device.setType(DeviceInfo.TYPE_AC2DM);
+        device.setGcm(true);
+        device.setName("warmup");
+        return device;
+    }
+
+    /**
+     * Warmup sends must not be suppressed or remembered.
+     */
+    @Override
+    protected boolean isDedupeEnabled() {
+        return false;
+    }
+
+    /**
+     * The NoopTransport sender while warming up.
+     */
+    @Override
+    protected Sender getSender() {
+        return noopSender;
+    }
+}
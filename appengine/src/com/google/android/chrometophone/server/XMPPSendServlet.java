@@ -90,6 +90,12 @@ public class XMPPSendServlet extends SendServlet {
         String deviceType = params.get("deviceType");
 
         
+        // No reply when over the limit - it would be more work for the
+        // same sender.
+        if (!checkRateLimit(jid, null, 1, resp)) {
+            return;
+        }
+
         log.info("Sending " + jid);
         RequestInfo reqInfo = new RequestInfo(jid, getServletContext());
         
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.standalone;
+
+import com.google.android.chrometophone.server.RequestPipeline;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet 3 async mode for RequestPipeline: the stages of /send and
+ * /register run on their own threads instead of the Jetty request thread.
+ *
+ * On Java 21 each stage gets a virtual thread, and at most 'queue' stages
+ * are started or waiting at a time. Older JVMs use a pool of 'threads'
+ * platform threads with a queue of that size. Either way, when the limit
+ * is reached new stages are rejected and the request fails with a 503
+ * rather than piling up.
+ */
+class AsyncDispatcher implements RequestPipeline.Dispatcher {
+    private static final Logger log = Logger.getLogger(AsyncDispatcher.class.getName());
+
+    static final String PROPERTY_THREADS = "c2p.async.threads";
+    static final String PROPERTY_QUEUE = "c2p.async.queue";
+
+    static final int DEFAULT_THREADS = 64;
+    static final int DEFAULT_QUEUE = 1024;
+
+    /**
+     * Requests still running after this get a 503.
+     */
+    static final long TIMEOUT_MS = 60000;
+
+    private final ExecutorService executor;
+    private final Executor stages;
+
+    AsyncDispatcher(int threads, int queueSize) {
+        ExecutorService virtualThreads = RequestThreadPool.newVirtualThreadExecutor();
+        if (virtualThreads != null) {
+            executor = virtualThreads;
+            stages = new BoundedExecutor(virtualThreads, queueSize);
+            log.info("Async requests enabled, virtual threads, at most " + queueSize +
+                    " stages");
+            return;
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "c2p-stage-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+        stages = pool;
+        log.info("Async requests enabled, " + threads + " threads, queue " + queueSize);
+    }
+
+    static AsyncDispatcher fromProperties() {
+        return new AsyncDispatcher(Integer.getInteger(PROPERTY_THREADS, DEFAULT_THREADS),
+                Integer.getInteger(PROPERTY_QUEUE, DEFAULT_QUEUE));
+    }
+
+    Executor getExecutor() {
+        return stages;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public RequestPipeline.AsyncRequest startAsync(final HttpServletRequest req,
+                                                   final HttpServletResponse resp) {
+        if (!req.isAsyncSupported()) {
+            return null;
+        }
+        final AsyncContext async = req.startAsync(req, resp);
+        async.setTimeout(TIMEOUT_MS);
+        final Request request = new Request(async);
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                // Waits for a running stage - see Request.
+                synchronized (request) {
+                    if (request.done) {
+                        return;
+                    }
+                    request.done = true;
+                    log.warning("Request timed out: " + req.getRequestURI());
+                    if (!resp.isCommitted()) {
+                        resp.reset();
+                        resp.setStatus(503);
+                        resp.setContentType("text/plain");
+                        resp.getWriter().println("ERROR (Timeout)");
+                    }
+                    async.complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                log.warning("Async request error: " + event.getThrowable());
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Runs each task on the executor, rejecting it when 'limit' tasks are
+     * already submitted and not finished - virtual threads are not limited
+     * by a pool size.
+     */
+    private static class BoundedExecutor implements Executor {
+        private final Executor executor;
+        private final Semaphore permits;
+
+        BoundedExecutor(Executor executor, int limit) {
+            this.executor = executor;
+            this.permits = new Semaphore(limit);
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            if (!permits.tryAcquire()) {
+                throw new RejectedExecutionException("Too many stages");
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * The pipeline runs each stage holding the lock of the request, so a
+     * timeout is handled between stages: the stage running when it fires
+     * finishes first, and the following ones are dropped.
+     */
+    private static class Request implements RequestPipeline.AsyncRequest {
+        private final AsyncContext async;
+        // Guarded by this
+        boolean done;
+
+        Request(AsyncContext async) {
+            this.async = async;
+        }
+
+        @Override
+        public synchronized void complete() {
+            if (!done) {
+                done = true;
+                async.complete();
+            }
+        }
+
+        @Override
+        public Object lock() {
+            return this;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
+        }
+    }
+}
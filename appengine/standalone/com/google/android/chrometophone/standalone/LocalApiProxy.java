@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.chrometophone.standalone;
+
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * ApiProxy setup for running outside App Engine.
+ *
+ * Every thread gets an environment on first use, so datastore keys can be
+ * created. Calls to App Engine services fail with CallNotFoundException,
+ * which the servlets handle like a service outage.
+ */
+class LocalApiProxy implements ApiProxy.Delegate<ApiProxy.Environment> {
+    static final String APP_ID = "chrometophone";
+
+    static void install() {
+        ApiProxy.setEnvironmentFactory(new ApiProxy.EnvironmentFactory() {
+            @Override
+            public ApiProxy.Environment newEnvironment() {
+                return new LocalEnvironment();
+            }
+        });
+        ApiProxy.setDelegate(new LocalApiProxy());
+    }
+
+    @Override
+    public byte[] makeSyncCall(ApiProxy.Environment env, String packageName,
+            String methodName, byte[] request) {
+        throw new ApiProxy.CallNotFoundException(packageName, methodName);
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(ApiProxy.Environment env, final String packageName,
+            final String methodName, byte[] request, ApiProxy.ApiConfig config) {
+        FutureTask<byte[]> res = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                throw new ApiProxy.CallNotFoundException(packageName, methodName);
+            }
+        });
+        res.run();
+        return res;
+    }
+
+    @Override
+    public void log(ApiProxy.Environment env, ApiProxy.LogRecord record) {
+        // java.util.logging goes to the console already
+    }
+
+    @Override
+    public void flushLogs(ApiProxy.Environment env) {
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(ApiProxy.Environment env) {
+        return Collections.emptyList();
+    }
+
+    static class LocalEnvironment implements ApiProxy.Environment {
+        private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+
+        @Override
+        public String getAppId() {
+            return APP_ID;
+        }
+
+        @Override
+        public String getModuleId() {
+            return "default";
+        }
+
+        @Override
+        public String getVersionId() {
+            return "standalone.1";
+        }
+
+        @Override
+        public String getEmail() {
+            return null;
+        }
+
+        @Override
+        public boolean isLoggedIn() {
+            return false;
+        }
+
+        @Override
+        public boolean isAdmin() {
+            return false;
+        }
+
+        @Override
+        public String getAuthDomain() {
+            return null;
+        }
+
+        @Override
+        @Deprecated
+        public String getRequestNamespace() {
+            return "";
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public long getRemainingMillis() {
+            return Long.MAX_VALUE;
+        }
+    }
+}
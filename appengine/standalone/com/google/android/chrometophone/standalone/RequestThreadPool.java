@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.chrometophone.standalone;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Jetty thread pool running each task on its own virtual thread, so
+ * requests blocked on GCM or storage don't hold a platform thread. The
+ * number of concurrent requests is not limited by a pool size.
+ *
+ * Virtual threads need Java 21 - they are looked up by reflection, older
+ * JVMs get an unbounded cached pool of platform threads.
+ */
+class RequestThreadPool extends AbstractLifeCycle implements ThreadPool {
+    private static final Logger log = Logger.getLogger(RequestThreadPool.class.getName());
+
+    static final long STOP_TIMEOUT_MS = 10000;
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final AtomicInteger running = new AtomicInteger();
+
+    RequestThreadPool() {
+        ExecutorService virtualThreads = newVirtualThreadExecutor();
+        virtual = virtualThreads != null;
+        executor = virtual ? virtualThreads : Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "c2p-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        log.info(virtual ? "Using virtual threads" :
+                "Virtual threads not available, using a thread pool");
+    }
+
+    /**
+     * @return null before Java 21.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ReflectiveOperationException e) {
+            log.warning("Can't create virtual threads: " + e);
+            return null;
+        }
+    }
+
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                running.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        executor.shutdown();
+        if (!executor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        while (!executor.awaitTermination(1, TimeUnit.DAYS)) {
+            // keep waiting
+        }
+    }
+
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.chrometophone.standalone;
+
+import com.google.android.chrometophone.server.HttpTransport;
+import com.google.android.chrometophone.server.MappedLogStorageBackend;
+import com.google.android.chrometophone.server.RegistryWriteBehind;
+import com.google.android.chrometophone.server.RequestPipeline;
+import com.google.android.chrometophone.server.Storage;
+import com.google.android.chrometophone.server.StorageBackend;
+import com.google.android.chrometophone.server.WarmupServlet;
+
+import org.eclipse.jetty.security.HashLoginService;
+import org.eclipse.jetty.security.UserStore;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.webapp.WebAppContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Runs the relay outside App Engine, in an embedded Jetty serving the
+ * servlets of war/WEB-INF/web.xml.
+ *
+ * Usage: StandaloneServer [war directory]
+ *
+ * System properties:
+ *   c2p.port - HTTP port, 8080 by default.
+ *   c2p.storage - storage backend, see Storage. Defaults to 'log', the
+ *       App Engine datastore is not available here.
+ *   c2p.storage.dir - directory of the 'log' backend.
+ *   c2p.transport - HttpTransport subclass used for the push requests,
+ *       with a no-argument constructor - NoopTransport for load tests.
+ *   c2p.async.queue - stages of async requests started or waiting at a
+ *       time, see AsyncDispatcher.
+ *   c2p.async.threads - platform threads running the stages when virtual
+ *       threads are not available.
+ *
+ * App Engine services are not available: task queues (async sends and
+ * retries), memcache, channels, XMPP and App Engine logins. Registry
+ * updates found while sending are applied in the background. Admin URLs
+ * are forbidden, there is no login.
+ */
+public class StandaloneServer {
+    private static final Logger log = Logger.getLogger(StandaloneServer.class.getName());
+
+    static final String PROPERTY_PORT = "c2p.port";
+    static final String PROPERTY_TRANSPORT = "c2p.transport";
+
+    static final int DEFAULT_PORT = 8080;
+
+    /**
+     * Servlet name in web.xml - run before accepting requests, App Engine
+     * does it with a request to /_ah/warmup.
+     */
+    static final String WARMUP_SERVLET = "WarmupServlet";
+
+    public static void main(String[] args) throws Exception {
+        File war = new File(args.length > 0 ? args[0] : "war");
+        int port = Integer.getInteger(PROPERTY_PORT, DEFAULT_PORT);
+        if (System.getProperty(Storage.PROPERTY_BACKEND) == null) {
+            System.setProperty(Storage.PROPERTY_BACKEND, Storage.BACKEND_LOG);
+        }
+        String transport = System.getProperty(PROPERTY_TRANSPORT);
+        if (transport != null) {
+            HttpTransport.set((HttpTransport) Class.forName(transport).newInstance());
+        }
+        LocalApiProxy.install();
+
+        Server server = createServer(war, port);
+        server.setStopAtShutdown(true);
+        server.start();
+        log.info("Listening on port " + port + ", serving " + war.getAbsolutePath());
+        server.join();
+    }
+
+    static Server createServer(File war, int port) {
+        final RequestThreadPool threads = new RequestThreadPool();
+        final AsyncDispatcher async = AsyncDispatcher.fromProperties();
+        Server server = new Server(threads);
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(port);
+        server.addConnector(connector);
+
+        final WebAppContext webapp = new WebAppContext() {
+            @Override
+            protected void startContext() throws Exception {
+                super.startContext();
+                // Servlets are initialized, connectors not started yet.
+                ServletHolder warmup = getServletHandler().getServlet(WARMUP_SERVLET);
+                if (warmup != null) {
+                    try {
+                        ((WarmupServlet) warmup.getServlet()).warmup();
+                    } catch (RuntimeException e) {
+                        // Only slower first requests.
+                        log.log(Level.WARNING, "Warmup failed", e);
+                    }
+                }
+            }
+        };
+        webapp.setContextPath("/");
+        webapp.setResourceBase(war.getPath());
+        webapp.setDescriptor(new File(war, "WEB-INF/web.xml").getPath());
+        // Servlet classes come from our classpath, not WEB-INF.
+        webapp.setParentLoaderPriority(true);
+        // No users: the admin security constraints deny everything.
+        HashLoginService admins = new HashLoginService("admin");
+        admins.setUserStore(new UserStore());
+        webapp.getSecurityHandler().setLoginService(admins);
+        webapp.addEventListener(new ServletContextListener() {
+            @Override
+            public void contextInitialized(ServletContextEvent event) {
+                RegistryWriteBehind.applyLocally(Storage.get(event.getServletContext()),
+                        threads);
+                // web.xml stays at 2.5 for App Engine, async is turned on here.
+                for (ServletHolder holder : webapp.getServletHandler().getServlets()) {
+                    holder.setAsyncSupported(true);
+                }
+                RequestPipeline.enable(async, async.getExecutor());
+            }
+
+            @Override
+            public void contextDestroyed(ServletContextEvent event) {
+                RequestPipeline.disable();
+                async.shutdown();
+                StorageBackend backend = Storage.get(event.getServletContext()).getBackend();
+                if (backend instanceof MappedLogStorageBackend) {
+                    try {
+                        ((MappedLogStorageBackend) backend).close();
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, "Error closing the registry", e);
+                    }
+                }
+            }
+        });
+        server.setHandler(webapp);
+        return server;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+    private static int count;
+
+    private static ConcurrencyLimiter limiter(int initialLimit) {
+        return new ConcurrencyLimiter("test" + (count++), initialLimit);
+    }
+
+    /**
+     * One request taking about 'millis', alone.
+     */
+    private static void request(ConcurrencyLimiter limiter, long millis, boolean sample)
+            throws InterruptedException {
+        long start = limiter.acquire();
+        assertTrue(start >= 0);
+        Thread.sleep(millis);
+        limiter.release(start, false, sample);
+    }
+
+    @Test
+    public void rejectsOverLimit() {
+        ConcurrencyLimiter limiter = limiter(4);
+        long[] starts = new long[4];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = limiter.acquire();
+            assertTrue(starts[i] >= 0);
+        }
+        assertEquals(-1, limiter.acquire());
+        limiter.release(starts[0], false, false);
+        assertTrue(limiter.acquire() >= 0);
+        assertEquals(4, limiter.getInFlight());
+    }
+
+    @Test
+    public void fastUnsampledRequestsDontShrinkLimit() throws InterruptedException {
+        ConcurrencyLimiter limiter = limiter(ConcurrencyLimiter.INITIAL_LIMIT);
+        // Rejected, unauthenticated or deduplicated requests.
+        for (int i = 0; i < 1000; i++) {
+            request(limiter, 0, false);
+        }
+        // Sends at the backend's normal latency.
+        for (int i = 0; i < 5; i++) {
+            request(limiter, 20, true);
+        }
+        assertEquals(ConcurrencyLimiter.INITIAL_LIMIT, limiter.getLimit());
+    }
+
+    @Test
+    public void slowRequestsShrinkLimit() throws InterruptedException {
+        ConcurrencyLimiter limiter = limiter(ConcurrencyLimiter.INITIAL_LIMIT);
+        request(limiter, 1, true);
+        // Way over TOLERANCE x no-load + SLACK.
+        for (int i = 0; i < 3; i++) {
+            request(limiter, 2 * ConcurrencyLimiter.SLACK_NANOS / 1000000 + 20, true);
+        }
+        assertEquals((int) (ConcurrencyLimiter.INITIAL_LIMIT * Math.pow(
+                ConcurrencyLimiter.BACKOFF, 3)), limiter.getLimit());
+    }
+
+    @Test
+    public void failuresShrinkLimitToMinimum() {
+        ConcurrencyLimiter limiter = limiter(ConcurrencyLimiter.INITIAL_LIMIT);
+        for (int i = 0; i < 100; i++) {
+            long start = limiter.acquire();
+            limiter.release(start, true, false);
+        }
+        assertEquals(ConcurrencyLimiter.MIN_LIMIT, limiter.getLimit());
+    }
+
+    @Test
+    public void growsWhenLimitIsUsed() {
+        ConcurrencyLimiter limiter = limiter(ConcurrencyLimiter.MIN_LIMIT);
+        long[] starts = new long[ConcurrencyLimiter.MAX_LIMIT];
+        for (int round = 0; round < 20; round++) {
+            int n = limiter.getLimit();
+            for (int i = 0; i < n; i++) {
+                starts[i] = limiter.acquire();
+            }
+            for (int i = 0; i < n; i++) {
+                limiter.release(starts[i], false, true);
+            }
+        }
+        assertTrue("limit " + limiter.getLimit(),
+                limiter.getLimit() > ConcurrencyLimiter.MIN_LIMIT);
+    }
+}
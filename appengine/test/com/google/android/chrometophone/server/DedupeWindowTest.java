@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DedupeWindowTest {
+    private static final String USER = "a@example.com";
+
+    @Test
+    public void normalizeUrl() {
+        assertEquals("http://example.com/",
+                DedupeWindow.normalizeUrl("HTTP://Example.COM:80"));
+        assertEquals("https://example.com/a?q=1#top",
+                DedupeWindow.normalizeUrl(" https://example.com:443/a?q=1#top "));
+        assertEquals("http://example.com:8080/A",
+                DedupeWindow.normalizeUrl("http://EXAMPLE.com:8080/A"));
+        // Not a URL with a host - used as is.
+        assertEquals("tel:+1 555 0100", DedupeWindow.normalizeUrl("tel:+1 555 0100"));
+        assertEquals("not a url", DedupeWindow.normalizeUrl("not a url"));
+    }
+
+    @Test
+    public void equivalentSendsHaveSameFingerprint() {
+        assertEquals(
+                DedupeWindow.fingerprint(USER, "http://example.com", "sel",
+                        new String[] { "phone", "tablet" }, null),
+                DedupeWindow.fingerprint(USER, "HTTP://example.com:80/", " sel ",
+                        new String[] { "tablet", "phone" }, null));
+    }
+
+    @Test
+    public void differentSendsHaveDifferentFingerprints() {
+        long base = DedupeWindow.fingerprint(USER, "http://example.com/", "", null, null);
+        assertTrue(base != DedupeWindow.fingerprint("b@example.com", "http://example.com/",
+                "", null, null));
+        assertTrue(base != DedupeWindow.fingerprint(USER, "http://example.com/a",
+                "", null, null));
+        assertTrue(base != DedupeWindow.fingerprint(USER, "http://example.com/",
+                "", new String[] { "phone" }, null));
+        assertTrue(base != DedupeWindow.fingerprint(USER, "http://example.com/",
+                "", null, DeviceInfo.TYPE_AC2DM));
+        // Field boundaries count.
+        assertTrue(DedupeWindow.fingerprint("ab", "c", "", null, null) !=
+                DedupeWindow.fingerprint("a", "bc", "", null, null));
+    }
+
+    @Test
+    public void duplicateGetsOriginalResult() {
+        DedupeWindow window = new DedupeWindow(16, 10000);
+        long fingerprint = DedupeWindow.fingerprint(USER, "http://example.com/", "", null, null);
+        assertNull(window.begin(fingerprint));
+        assertEquals(DedupeWindow.PENDING, window.begin(fingerprint));
+        window.complete(fingerprint, "OK sent");
+        assertEquals("OK sent", window.begin(fingerprint));
+    }
+
+    @Test
+    public void cancelledSendCanBeRetried() {
+        DedupeWindow window = new DedupeWindow(16, 10000);
+        long fingerprint = DedupeWindow.fingerprint(USER, "http://example.com/", "", null, null);
+        assertNull(window.begin(fingerprint));
+        window.cancel(fingerprint);
+        assertNull(window.begin(fingerprint));
+    }
+
+    @Test
+    public void expiresAfterWindow() throws InterruptedException {
+        DedupeWindow window = new DedupeWindow(16, 20);
+        long fingerprint = DedupeWindow.fingerprint(USER, "http://example.com/", "", null, null);
+        assertNull(window.begin(fingerprint));
+        Thread.sleep(50);
+        assertNull(window.begin(fingerprint));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.chrometophone.server;
+
+import static com.google.android.chrometophone.server.TestDevices.device;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DeviceCacheTest {
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    private DeviceCache cache;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        cache = new DeviceCache(new LocalSharedCache());
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void hitAfterPut() {
+        long version = cache.version("a@example.com");
+        cache.put("a@example.com", version,
+                Arrays.asList(device("a@example.com", "phone", "r1")));
+
+        List<DeviceInfo> devices = cache.get("a@example.com");
+        assertNotNull(devices);
+        assertEquals("r1", devices.get(0).getDeviceRegistrationID());
+    }
+
+    @Test
+    public void putRacingWithInvalidateIsDropped() {
+        long version = cache.version("a@example.com");
+        // The device changes while the old list is being loaded.
+        cache.invalidate("a@example.com");
+        cache.put("a@example.com", version,
+                Arrays.asList(device("a@example.com", "phone", "old")));
+
+        assertNull(cache.get("a@example.com"));
+    }
+
+    @Test
+    public void returnedDevicesAreCopies() {
+        long version = cache.version("a@example.com");
+        DeviceInfo loaded = device("a@example.com", "phone", "r1");
+        cache.put("a@example.com", version, Arrays.asList(loaded));
+        loaded.setName("changed by loader");
+
+        cache.get("a@example.com").get(0).setName("changed by caller");
+
+        assertEquals("phone", cache.get("a@example.com").get(0).getName());
+    }
+
+    /**
+     * Shared cache where tests choose what is evicted.
+     */
+    private static class EvictingCache implements SharedCache {
+        private final Map<String, Object> values = new HashMap<String, Object>();
+
+        @Override
+        public synchronized Map<String, Object> getAll(Collection<String> keys) {
+            Map<String, Object> res = new HashMap<String, Object>();
+            for (String key : keys) {
+                if (values.containsKey(key)) {
+                    res.put(key, values.get(key));
+                }
+            }
+            return res;
+        }
+
+        @Override
+        public synchronized void put(String key, Object value, int expirationSeconds) {
+            values.put(key, value);
+        }
+
+        @Override
+        public synchronized Long increment(String key, long delta, long initialValue) {
+            Object old = values.get(key);
+            long res = (old instanceof Long ? (Long) old : initialValue) + delta;
+            values.put(key, res);
+            return res;
+        }
+
+        synchronized void evict(String key) {
+            values.remove(key);
+        }
+    }
+
+    @Test
+    public void evictedCounterDoesNotRevalidateOldList() throws InterruptedException {
+        EvictingCache shared = new EvictingCache();
+        DeviceCache cache = new DeviceCache(shared);
+        long version = cache.version("a@example.com");
+        cache.put("a@example.com", version,
+                Arrays.asList(device("a@example.com", "phone", "old")));
+        cache.invalidate("a@example.com");
+
+        // The counter is evicted, the old list is not.
+        shared.evict("dv:a@example.com");
+        Thread.sleep(2);
+        cache.version("a@example.com");
+
+        assertNull(cache.get("a@example.com"));
+    }
+}
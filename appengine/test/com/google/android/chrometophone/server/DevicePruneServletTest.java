@@ -0,0 +1,73 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+
+public class DevicePruneServletTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+
+    private DatastoreService datastore;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        datastore = DatastoreServiceFactory.getDatastoreService();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    private Key ping(String keyName) {
+        Entity ping = new Entity(KeyFactory.createKey(DevicePruneServlet.PING_KIND, keyName));
+        ping.setUnindexedProperty(DevicePruneServlet.PROPERTY_PING_TIMESTAMP, new Date());
+        return datastore.put(ping);
+    }
+
+    @Test
+    public void deletesPingsOfDeletedDevices() {
+        datastore.put(EntityMapper.toEntity(
+                new DeviceInfo(EntityMapper.deviceKey("a@example.com#1"), "r1")));
+        Key kept = ping("a@example.com#1");
+        Key orphan = ping("a@example.com#2");
+
+        assertEquals(1, DevicePruneServlet.deleteOrphanedPings(datastore,
+                Arrays.asList(kept, orphan)));
+
+        assertEquals(1, datastore.get(Arrays.asList(kept, orphan)).size());
+        assertEquals(0, DevicePruneServlet.deleteOrphanedPings(datastore,
+                Arrays.asList(kept)));
+    }
+}
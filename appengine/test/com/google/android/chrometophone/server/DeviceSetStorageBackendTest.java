@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import static com.google.android.chrometophone.server.TestDevices.USER;
+import static com.google.android.chrometophone.server.TestDevices.device;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class DeviceSetStorageBackendTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+
+    private DatastoreService datastore;
+    private DeviceSetStorageBackend backend;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        datastore = DatastoreServiceFactory.getDatastoreService();
+        backend = new DeviceSetStorageBackend(null);
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    private List<String> regIds() {
+        List<String> res = new ArrayList<String>();
+        for (DeviceInfo device : backend.loadDevices(USER)) {
+            res.add(device.getDeviceRegistrationID());
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    private Entity getSet() {
+        try {
+            return datastore.get(DeviceSetStorageBackend.setKey(USER));
+        } catch (EntityNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Test
+    public void firstChangeMigratesLegacyDevices() {
+        DeviceInfo legacy = device(USER, "old", "r1");
+        datastore.put(EntityMapper.toEntity(legacy));
+        assertNull(getSet());
+
+        backend.saveDevice(device(USER, "new", "r2"), 0);
+
+        assertNotNull(getSet());
+        assertEquals(Arrays.asList("r1", "r2"), regIds());
+        assertEquals(Arrays.asList(USER + "#old"), backend.findDeviceKeys("r1"));
+        try {
+            datastore.get(legacy.getKey());
+            throw new AssertionError("legacy entity not deleted");
+        } catch (EntityNotFoundException e) {
+            // moved to the set
+        }
+    }
+
+    @Test
+    public void changesToMigratedUser() {
+        backend.saveDevice(device(USER, "phone", "r1"), 0);
+        backend.updateRegistration(USER, "r1", "r2");
+        assertEquals(Arrays.asList("r2"), regIds());
+
+        backend.deleteRegistration(USER, "r2");
+        assertEquals(Collections.<String>emptyList(), regIds());
+        // The empty set still marks the user as migrated.
+        assertNotNull(getSet());
+    }
+
+    @Test
+    public void deleteWithoutRegistrationIdKeepsDevice() {
+        backend.saveDevice(device(USER, "phone", "r1"), 0);
+
+        backend.deleteDevices(Arrays.asList(device(USER, "phone", null)));
+
+        assertEquals(Arrays.asList("r1"), regIds());
+    }
+
+    private static List<String> keyNames(List<DeviceInfo> devices) {
+        List<String> res = new ArrayList<String>();
+        for (DeviceInfo device : devices) {
+            res.add(device.getKey().getName());
+        }
+        return res;
+    }
+
+    @Test
+    public void listDevicesMergesSetsAndLegacyDevices() {
+        // Not migrated yet
+        datastore.put(EntityMapper.toEntity(device("b@example.com", "1", "r1")));
+        backend.saveDevice(device(USER, "phone", "r2"), 0);
+        backend.saveDevice(device(USER, "tablet", "r3"), 0);
+        // Left over from a migration
+        datastore.put(EntityMapper.toEntity(device(USER, "gone", "r4")));
+
+        assertEquals(Arrays.asList(USER + "#phone", USER + "#tablet"),
+                keyNames(backend.listDevices(null, 2)));
+        assertEquals(Arrays.asList("b@example.com#1"),
+                keyNames(backend.listDevices(USER + "#tablet", 2)));
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import static com.google.android.chrometophone.server.TestDevices.USER;
+import static com.google.android.chrometophone.server.TestDevices.device;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class MappedLogStorageBackendTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+
+    private File dir;
+    private MappedLogStorageBackend backend;
+
+    @Before
+    public void setUp() throws IOException {
+        helper.setUp();
+        dir = folder.getRoot();
+        backend = new MappedLogStorageBackend(dir, false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        backend.close();
+        helper.tearDown();
+    }
+
+    private void reopen() throws IOException {
+        backend.close();
+        backend = new MappedLogStorageBackend(dir, false);
+    }
+
+    private List<String> regIds(String user) {
+        List<String> res = new ArrayList<String>();
+        for (DeviceInfo device : backend.loadDevices(user)) {
+            res.add(device.getDeviceRegistrationID());
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    @Test
+    public void reopenReplaysLog() throws IOException {
+        backend.saveDevice(device(USER, "phone", "r1"), 0);
+        backend.saveDevice(device(USER, "tablet", "r2"), 0);
+        backend.updateRegistration(USER, "r1", "r3");
+        backend.deleteRegistration(USER, "r2");
+
+        reopen();
+
+        assertEquals(Arrays.asList("r3"), regIds(USER));
+        assertEquals(1, backend.findDeviceKeys("r3").size());
+        assertTrue(backend.findDeviceKeys("r1").isEmpty());
+        assertTrue(backend.findDeviceKeys("r2").isEmpty());
+    }
+
+    @Test
+    public void tornWriteEndsLog() throws IOException {
+        backend.saveDevice(device(USER, "phone", "r1"), 0);
+        backend.saveDevice(device(USER, "tablet", "torn-regid"), 0);
+        backend.close();
+
+        corrupt("torn-regid");
+        backend = new MappedLogStorageBackend(dir, false);
+
+        assertEquals(Arrays.asList("r1"), regIds(USER));
+        // Appends go where the torn record was.
+        backend.saveDevice(device(USER, "laptop", "r2"), 0);
+        reopen();
+        assertEquals(Arrays.asList("r1", "r2"), regIds(USER));
+    }
+
+    /**
+     * Flip a byte of the first record containing s, so its CRC fails.
+     */
+    private void corrupt(String s) throws IOException {
+        byte[] needle = s.getBytes(Charset.forName("UTF-8"));
+        RandomAccessFile file = new RandomAccessFile(
+                new File(dir, MappedLogStorageBackend.LOG_FILE), "rw");
+        try {
+            byte[] bytes = new byte[64 << 10];
+            file.readFully(bytes);
+            for (int i = 0; i + needle.length <= bytes.length; i++) {
+                if (Arrays.equals(needle, Arrays.copyOfRange(bytes, i, i + needle.length))) {
+                    file.seek(i);
+                    file.write(needle[0] ^ 1);
+                    return;
+                }
+            }
+            throw new AssertionError(s + " not found in log");
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void compactKeepsLiveRecords() throws IOException {
+        C2PConfig config = new C2PConfig();
+        config.setAuthToken("token");
+        backend.saveConfig(config);
+        for (int i = 0; i < 100; i++) {
+            backend.saveDevice(device(USER, "phone", "r" + i), 0);
+        }
+        backend.saveDevice(device("b@example.com", "phone", "b1"), 0);
+        backend.deleteRegistration("b@example.com", "b1");
+
+        backend.compact();
+
+        assertEquals(Arrays.asList("r99"), regIds(USER));
+        assertTrue(backend.loadDevices("b@example.com").isEmpty());
+        assertEquals("token", backend.loadConfig().getAuthToken());
+
+        // Writes after compaction land in the new file.
+        backend.saveDevice(device(USER, "tablet", "t1"), 0);
+        reopen();
+        assertEquals(Arrays.asList("r99", "t1"), regIds(USER));
+        assertEquals(1, backend.findDeviceKeys("r99").size());
+        assertEquals("token", backend.loadConfig().getAuthToken());
+    }
+
+    @Test
+    public void configRoundTrip() throws IOException {
+        C2PConfig config = new C2PConfig();
+        config.setAuthToken("token");
+        config.setLegacyClientLogin(null);
+        config.setRegistrationRefreshSeconds(3600L);
+        config.setUserSendsPerMinute(7L);
+        config.setUserSendBurst(8L);
+        config.setIpSendsPerMinute(9L);
+        config.setIpSendBurst(10L);
+        backend.saveConfig(config);
+
+        reopen();
+
+        C2PConfig loaded = backend.loadConfig();
+        assertEquals("token", loaded.getAuthToken());
+        assertEquals(null, loaded.getLegacyClientLogin());
+        assertEquals(3600L, loaded.getRegistrationRefreshSeconds());
+        assertEquals(7L, loaded.getUserSendsPerMinute());
+        assertEquals(8L, loaded.getUserSendBurst());
+        assertEquals(9L, loaded.getIpSendsPerMinute());
+        assertEquals(10L, loaded.getIpSendBurst());
+    }
+
+    @Test
+    public void listDevicesPagesInKeyOrder() throws IOException {
+        backend.saveDevice(device("c@example.com", "phone", "r1"), 0);
+        backend.saveDevice(device(USER, "tablet", "r2"), 0);
+        backend.saveDevice(device(USER, "phone", "r3"), 0);
+        backend.saveDevice(device("b@example.com", "phone", "r4"), 0);
+
+        List<String> keyNames = new ArrayList<String>();
+        String after = null;
+        List<DeviceInfo> page;
+        do {
+            page = backend.listDevices(after, 2);
+            for (DeviceInfo device : page) {
+                keyNames.add(device.getKey().getName());
+                after = device.getKey().getName();
+            }
+        } while (page.size() == 2);
+
+        assertEquals(Arrays.asList(USER + "#phone", USER + "#tablet",
+                "b@example.com#phone", "c@example.com#phone"), keyNames);
+    }
+}
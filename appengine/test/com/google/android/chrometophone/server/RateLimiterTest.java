@@ -0,0 +1,122 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RateLimiterTest {
+    private final RateLimiter limiter = new RateLimiter(64);
+
+    @Test
+    public void burstThenWait() {
+        long key = RateLimiter.userKey("a@example.com");
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.acquire(key, 1, 60, 5));
+        }
+        // 60 per minute: a token per second.
+        long wait = limiter.acquire(key, 1, 60, 5);
+        assertTrue("wait " + wait, wait > 0 && wait <= 1000);
+    }
+
+    @Test
+    public void keysHaveSeparateBuckets() {
+        long a = RateLimiter.userKey("a@example.com");
+        long b = RateLimiter.userKey("b@example.com");
+        assertEquals(0, limiter.acquire(a, 1, 1, 1));
+        assertTrue(limiter.acquire(a, 1, 1, 1) > 0);
+        assertEquals(0, limiter.acquire(b, 1, 1, 1));
+        assertTrue(RateLimiter.userKey("10.0.0.1") != RateLimiter.ipKey("10.0.0.1"));
+    }
+
+    @Test
+    public void costOverBurstIsRejected() {
+        long key = RateLimiter.userKey("a@example.com");
+        assertEquals(-1, limiter.acquire(key, 6, 60, 5));
+        assertEquals(0, limiter.acquire(key, 5, 60, 5));
+    }
+
+    @Test
+    public void refundGivesTokensBack() {
+        long key = RateLimiter.ipKey("10.0.0.1");
+        assertEquals(0, limiter.acquire(key, 2, 1, 2));
+        assertTrue(limiter.acquire(key, 1, 1, 2) > 0);
+
+        limiter.refund(key, 2, 1, 2);
+        assertEquals(0, limiter.acquire(key, 2, 1, 2));
+        // Not over the burst
+        limiter.refund(key, 2, 1, 2);
+        limiter.refund(key, 2, 1, 2);
+        assertEquals(0, limiter.acquire(key, 2, 1, 2));
+        assertTrue(limiter.acquire(key, 1, 1, 2) > 0);
+    }
+
+    @Test
+    public void disabledLimit() {
+        long key = RateLimiter.userKey("a@example.com");
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, limiter.acquire(key, 1, 0, 1));
+        }
+    }
+
+    @Test
+    public void fullTableStillLimits() {
+        // Many more keys than slots - old buckets are taken over.
+        for (int i = 0; i < 1000; i++) {
+            limiter.acquire(RateLimiter.ipKey("10.0.0." + i), 1, 1, 1);
+        }
+        long key = RateLimiter.userKey("a@example.com");
+        assertEquals(0, limiter.acquire(key, 1, 1, 1));
+        assertTrue(limiter.acquire(key, 1, 1, 1) > 0);
+    }
+
+    @Test
+    public void concurrentAcquiresNeverExceedBurst() throws InterruptedException {
+        final long key = RateLimiter.userKey("a@example.com");
+        final AtomicInteger allowed = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 100; i++) {
+                        if (limiter.acquire(key, 1, 1, 50) == 0) {
+                            allowed.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(50, allowed.get());
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RegistrationIndexBackfillServletTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+
+    private DatastoreService datastore;
+    private DatastoreStorageBackend backend;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        datastore = DatastoreServiceFactory.getDatastoreService();
+        backend = new DatastoreStorageBackend();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    /**
+     * A device written without its index entry, like before the index.
+     */
+    private Entity legacyDevice(String keyName, String regId) {
+        DeviceInfo device = new DeviceInfo(EntityMapper.deviceKey(keyName), regId);
+        device.setName("phone");
+        Entity entity = EntityMapper.toEntity(device);
+        datastore.put(entity);
+        return entity;
+    }
+
+    @Test
+    public void indexesLegacyDevices() {
+        List<Entity> devices = new ArrayList<Entity>();
+        devices.add(legacyDevice("a@example.com#1", "r1"));
+        devices.add(legacyDevice("b@example.com#1", "r1"));
+        devices.add(legacyDevice("b@example.com#2", "r2"));
+        assertTrue(backend.findDeviceKeys("r1").isEmpty());
+
+        RegistrationIndexBackfillServlet.index(datastore, devices);
+        // Running again changes nothing.
+        RegistrationIndexBackfillServlet.index(datastore, devices);
+
+        assertEquals(Arrays.asList("a@example.com#1", "b@example.com#1"),
+                backend.findDeviceKeys("r1"));
+        assertEquals(Arrays.asList("b@example.com#2"), backend.findDeviceKeys("r2"));
+    }
+
+    @Test
+    public void skipsDevicesChangedAfterTheQuery() {
+        List<Entity> rows = new ArrayList<Entity>();
+        rows.add(legacyDevice("a@example.com#1", "r1"));
+        rows.add(legacyDevice("a@example.com#2", "r2"));
+        datastore.delete(rows.get(0).getKey());
+        legacyDevice("a@example.com#2", "r3");
+
+        RegistrationIndexBackfillServlet.index(datastore, rows);
+
+        assertTrue(backend.findDeviceKeys("r1").isEmpty());
+        assertTrue(backend.findDeviceKeys("r2").isEmpty());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import static com.google.android.chrometophone.server.TestDevices.USER;
+import static com.google.android.chrometophone.server.TestDevices.device;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+
+public class RegistryTransferServletTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+
+    private Storage storage;
+    private DatastoreStorageBackend backend;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        backend = new DatastoreStorageBackend();
+        storage = new Storage(null, backend, new LocalSharedCache());
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void jsonRoundTrip() throws Exception {
+        DeviceInfo device = device(USER, "phone", "r1");
+        device.setRegistrationTimestamp(new Date(1285000000000L));
+        device.setDebug(true);
+        device.setGcm(true);
+
+        String line = RegistryTransferServlet.toJson(device).toJSONString();
+        DeviceInfo read = RegistryTransferServlet.fromJson(
+                (JSONObject) new JSONParser().parse(line));
+
+        assertEquals(device.getKey(), read.getKey());
+        assertEquals("r1", read.getDeviceRegistrationID());
+        assertEquals(DeviceInfo.TYPE_AC2DM, read.getType());
+        assertEquals("phone", read.getName());
+        assertEquals(device.getRegistrationTimestamp(), read.getRegistrationTimestamp());
+        assertTrue(read.getDebug());
+        assertEquals(Boolean.TRUE, read.getGcm());
+    }
+
+    @Test
+    public void jsonRoundTripOptionalFields() throws Exception {
+        DeviceInfo device = new DeviceInfo(EntityMapper.deviceKey("a@example.com#1"), "r1");
+        device.setRegistrationTimestamp(null);
+
+        String line = RegistryTransferServlet.toJson(device).toJSONString();
+        DeviceInfo read = RegistryTransferServlet.fromJson(
+                (JSONObject) new JSONParser().parse(line));
+
+        assertNull(read.getRegistrationTimestamp());
+        assertNull(read.getGcm());
+        assertEquals(false, read.getDebug());
+    }
+
+    @Test
+    public void importReplacingRegistrationIdDropsOldIndexEntry() throws Exception {
+        backend.saveDevice(device(USER, "1", "old"), 0);
+        backend.saveDevice(device("b@example.com", "1", "shared"), 0);
+        backend.saveDevice(device(USER, "2", "shared"), 0);
+
+        RegistryTransferServlet.Importer importer =
+                new RegistryTransferServlet.Importer(storage, false, 0);
+        importer.submit(Arrays.asList(
+                device(USER, "1", "new"),
+                device(USER, "2", "other")), 2);
+        importer.finish();
+
+        assertTrue(backend.findDeviceKeys("old").isEmpty());
+        assertEquals(Arrays.asList("a@example.com#1"), backend.findDeviceKeys("new"));
+        assertEquals(Arrays.asList("b@example.com#1"), backend.findDeviceKeys("shared"));
+        assertEquals(Arrays.asList("a@example.com#2"), backend.findDeviceKeys("other"));
+        assertEquals(2, importer.checkpoint);
+        assertEquals(2, importer.imported);
+        // The empty entry was deleted, not stored empty.
+        assertEquals(3, DatastoreServiceFactory.getDatastoreService()
+                .prepare(new Query(RegistrationIndexChanges.KIND))
+                .countEntities(FetchOptions.Builder.withDefaults()));
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import static com.google.android.chrometophone.server.TestDevices.USER;
+import static com.google.android.chrometophone.server.TestDevices.device;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+public class RegistryWriteBehindTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalTaskQueueTestConfig().setQueueXmlPath("war/WEB-INF/queue.xml"));
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    private static List<String> strings(List<RegistryWriteBehind.Action> actions) {
+        List<String> res = new ArrayList<String>();
+        for (RegistryWriteBehind.Action action : actions) {
+            res.add(action.toString());
+        }
+        return res;
+    }
+
+    @Test
+    public void taskRoundTrip() throws Exception {
+        List<RegistryWriteBehind.Action> actions = Arrays.asList(
+                RegistryWriteBehind.Action.update(device(USER, "phone", "r1"), "c1"),
+                RegistryWriteBehind.Action.delete(device(USER, "tablet", "r2")));
+
+        Queue queue = QueueFactory.getQueue(RegistryWriteBehind.QUEUE_NAME);
+        queue.add(RegistryWriteBehind.toTask(actions));
+        List<TaskHandle> leased = queue.leaseTasks(60, TimeUnit.SECONDS, 10);
+        assertEquals(1, leased.size());
+
+        assertEquals(Arrays.asList(
+                "update " + USER + "#phone r1 -> c1",
+                "delete " + USER + "#tablet r2"),
+                strings(RegistryWriteBehind.parse(leased.get(0))));
+    }
+
+    @Test
+    public void coalesceKeepsLastActionAndDeletesWin() {
+        List<RegistryWriteBehind.Action> coalesced = RegistryWriteBehind.coalesce(Arrays.asList(
+                RegistryWriteBehind.Action.update(device(USER, "phone", "r1"), "c1"),
+                RegistryWriteBehind.Action.update(device(USER, "phone", "r1"), "c2"),
+                RegistryWriteBehind.Action.delete(device(USER, "tablet", "r2")),
+                RegistryWriteBehind.Action.update(device(USER, "tablet", "r2"), "c3"),
+                RegistryWriteBehind.Action.update(device(USER, "laptop", "r3"), "c4")));
+
+        assertEquals(Arrays.asList(
+                "update " + USER + "#phone r1 -> c2",
+                "delete " + USER + "#tablet r2",
+                "update " + USER + "#laptop r3 -> c4"),
+                strings(coalesced));
+    }
+
+    /**
+     * Storage skips canonical updates without a servlet context.
+     */
+    private static ServletContext context() {
+        return (ServletContext) Proxy.newProxyInstance(
+                ServletContext.class.getClassLoader(), new Class<?>[] { ServletContext.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                });
+    }
+
+    @Test
+    public void applyUpdatesAndPrunes() {
+        Storage storage = new Storage(context(), new MemoryStorageBackend(),
+                new LocalSharedCache());
+        storage.getBackend().saveDevice(device(USER, "phone", "r1"), 0);
+        storage.getBackend().saveDevice(device(USER, "tablet", "r2"), 0);
+
+        RegistryWriteBehind.apply(storage, Arrays.asList(
+                RegistryWriteBehind.Action.update(device(USER, "phone", "r1"), "c1"),
+                RegistryWriteBehind.Action.delete(device(USER, "tablet", "r2"))));
+
+        List<DeviceInfo> devices = storage.getBackend().loadDevices(USER);
+        assertEquals(1, devices.size());
+        assertEquals("c1", devices.get(0).getDeviceRegistrationID());
+        assertTrue(storage.getBackend().findDeviceKeys("r2").isEmpty());
+    }
+
+    @Test
+    public void failedPrunesAreNotCounted() {
+        Storage storage = new Storage(context(), new MemoryStorageBackend() {
+            @Override
+            public void deleteDevices(List<DeviceInfo> devices) {
+                throw new IllegalStateException("datastore down");
+            }
+        }, new LocalSharedCache());
+        Metrics.Counter pruned = Metrics.get().counter(Metrics.REGISTRATIONS_PRUNED);
+        long before = pruned.get();
+
+        try {
+            RegistryWriteBehind.apply(storage, Arrays.asList(
+                    RegistryWriteBehind.Action.delete(device(USER, "tablet", "r2"))));
+            fail("Failed deletes must be retried");
+        } catch (IllegalStateException e) {
+            // expected - RegistryTaskServlet keeps the tasks
+        }
+        assertEquals(before, pruned.get());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class RequestInfoTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+
+    private Storage storage;
+    private ServletContext ctx;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        storage = new Storage(null, new MemoryStorageBackend(), new LocalSharedCache());
+        ctx = stub(ServletContext.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getAttribute") &&
+                        Storage.class.getName().equals(args[0])) {
+                    return storage;
+                }
+                return null;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                handler);
+    }
+
+    private void register(String account, String regId) {
+        DeviceInfo device = new DeviceInfo(EntityMapper.deviceKey(account + "#1"), regId);
+        device.setName("chrome");
+        device.setType(DeviceInfo.TYPE_CHROME);
+        storage.getBackend().saveDevice(device, 0);
+    }
+
+    /**
+     * A form post identified by the IID cookie - account and regid.
+     */
+    private static HttpServletRequest cookieRequest(String account, String regId) {
+        final Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("account", new String[] { account });
+        params.put("devregid", new String[] { regId });
+        return stub(HttpServletRequest.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getHeader")) {
+                    return "X-Same-Domain".equals(args[0]) ? "1" : null;
+                } else if (name.equals("getContentType")) {
+                    return "application/x-www-form-urlencoded";
+                } else if (name.equals("getParameterMap")) {
+                    return params;
+                } else if (name.equals("getParameter")) {
+                    String[] values = params.get(args[0]);
+                    return values == null ? null : values[0];
+                }
+                return null;
+            }
+        });
+    }
+
+    private static HttpServletResponse response(final StringWriter body) {
+        final PrintWriter writer = new PrintWriter(body);
+        return stub(HttpServletResponse.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getWriter")) {
+                    return writer;
+                }
+                return null;
+            }
+        });
+    }
+
+    private static void runStages(RequestPipeline.Stage stage) throws IOException {
+        while (stage != null) {
+            stage = stage.run();
+        }
+    }
+
+    @Test
+    public void cookieUsersAreAdmittedByTheirAccount() throws IOException {
+        register("a@example.com", "regid-a");
+        register("b@example.com", "regid-b");
+
+        // One send per user, like a rate limit with burst 1.
+        final RateLimiter limiter = new RateLimiter(64);
+        final List<String> admitted = new ArrayList<String>();
+        final List<String> handled = new ArrayList<String>();
+        RequestInfo.Admission rateLimit = new RequestInfo.Admission() {
+            @Override
+            public boolean admit(RequestInfo reqInfo) {
+                admitted.add(reqInfo.userName);
+                return limiter.acquire(RateLimiter.userKey(reqInfo.userName), 1, 1, 1) == 0;
+            }
+        };
+        RequestInfo.Handler handler = new RequestInfo.Handler() {
+            @Override
+            public void handle(RequestInfo reqInfo) {
+                handled.add(reqInfo.userName);
+            }
+        };
+
+        for (String[] request : new String[][] {
+                { "a@example.com", "regid-a" },
+                { "b@example.com", "regid-b" },
+                { "a@example.com", "regid-a" } }) {
+            StringWriter body = new StringWriter();
+            runStages(RequestInfo.stages(cookieRequest(request[0], request[1]),
+                    response(body), ctx, rateLimit, handler));
+        }
+
+        assertEquals(Arrays.asList("a@example.com", "b@example.com",
+                "a@example.com"), admitted);
+        // b has its own bucket, a's second send is over the limit.
+        assertEquals(Arrays.asList("a@example.com", "b@example.com"), handled);
+    }
+
+    @Test
+    public void unknownCookieIsNotAdmitted() throws IOException {
+        final List<String> admitted = new ArrayList<String>();
+        RequestInfo.Admission admission = new RequestInfo.Admission() {
+            @Override
+            public boolean admit(RequestInfo reqInfo) {
+                admitted.add(reqInfo.userName);
+                return true;
+            }
+        };
+        StringWriter body = new StringWriter();
+        runStages(RequestInfo.stages(cookieRequest("a@example.com", "unknown"),
+                response(body), ctx, admission, new RequestInfo.Handler() {
+                    @Override
+                    public void handle(RequestInfo reqInfo) {
+                        throw new AssertionError("not authenticated");
+                    }
+                }));
+
+        assertEquals(0, admitted.size());
+        assertEquals("LOGIN_REQUIRED", body.toString().trim());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Executor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class RequestPipelineTest {
+    @After
+    public void tearDown() {
+        RequestPipeline.disable();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Async request whose timeout is set by the test.
+     */
+    private static class TimedRequest implements RequestPipeline.AsyncRequest {
+        boolean done;
+        int completed;
+
+        @Override
+        public synchronized void complete() {
+            completed++;
+            done = true;
+        }
+
+        @Override
+        public Object lock() {
+            return this;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
+        }
+    }
+
+    @Test
+    public void stagesAfterTimeoutAreDropped() throws IOException {
+        final TimedRequest request = new TimedRequest();
+        RequestPipeline.enable(new RequestPipeline.Dispatcher() {
+            @Override
+            public RequestPipeline.AsyncRequest startAsync(HttpServletRequest req,
+                                                           HttpServletResponse resp) {
+                return request;
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        final boolean[] secondRan = new boolean[1];
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter("pipeline_test", 10);
+
+        RequestPipeline.run(stub(HttpServletRequest.class), stub(HttpServletResponse.class),
+                null, limiter, new RequestPipeline.Stage() {
+                    @Override
+                    public RequestPipeline.Stage run() {
+                        // The dispatcher sent a 503 and completed the request.
+                        request.done = true;
+                        return new RequestPipeline.Stage() {
+                            @Override
+                            public RequestPipeline.Stage run() {
+                                secondRan[0] = true;
+                                return null;
+                            }
+                        };
+                    }
+                });
+
+        assertFalse(secondRan[0]);
+        assertEquals(0, request.completed);
+        assertEquals(0, limiter.getInFlight());
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class RetrySchedulerTest {
+    private static final int JITTER = C2DMessaging.DATAMESSAGING_MAX_JITTER_MSEC;
+
+    @Test
+    public void backoffDoubles() {
+        for (int attempt = 1; attempt < RetryScheduler.MAX_ATTEMPTS; attempt++) {
+            long base = RetryScheduler.INITIAL_BACKOFF_MS << (attempt - 1);
+            long delay = RetryScheduler.backoff(attempt, 0);
+            assertTrue("attempt " + attempt + ": " + delay,
+                    delay >= base && delay < base + JITTER);
+        }
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        long delay = RetryScheduler.backoff(100, 0);
+        assertTrue(delay >= RetryScheduler.MAX_BACKOFF_MS);
+        assertTrue(delay < RetryScheduler.MAX_BACKOFF_MS + JITTER);
+    }
+
+    @Test
+    public void retryAfterWins() {
+        long retryAfter = RetryScheduler.MAX_BACKOFF_MS * 2;
+        assertEquals(retryAfter, RetryScheduler.backoff(1, retryAfter));
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        // Returns before touching the queue.
+        assertFalse(RetryScheduler.schedule("user@example.com", "http://example.com/",
+                "", "", Arrays.asList("regid"), false,
+                RetryScheduler.MAX_ATTEMPTS - 1, 0));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+
+public class StorageTest {
+    private static final long HOUR = 3600 * 1000;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    private static DeviceInfo device(String regId, long timestamp) {
+        DeviceInfo device = TestDevices.device(TestDevices.USER, "phone", regId);
+        device.setGcm(true);
+        device.setRegistrationTimestamp(new Date(timestamp));
+        return device;
+    }
+
+    @Test
+    public void sameRegistrationWithinRefreshIsSkipped() {
+        assertFalse(Storage.needsWrite(device("r1", 0), device("r1", HOUR - 1), HOUR));
+    }
+
+    @Test
+    public void sameRegistrationAfterRefreshIsWritten() {
+        assertTrue(Storage.needsWrite(device("r1", 0), device("r1", HOUR), HOUR));
+    }
+
+    @Test
+    public void changedFieldsAreWritten() {
+        DeviceInfo stored = device("r1", 0);
+        assertTrue(Storage.needsWrite(stored, device("r2", 0), HOUR));
+
+        DeviceInfo renamed = device("r1", 0);
+        renamed.setName("tablet");
+        assertTrue(Storage.needsWrite(stored, renamed, HOUR));
+
+        DeviceInfo retyped = device("r1", 0);
+        retyped.setType(DeviceInfo.TYPE_CHROME);
+        assertTrue(Storage.needsWrite(stored, retyped, HOUR));
+
+        DeviceInfo noGcm = device("r1", 0);
+        noGcm.setGcm(null);
+        assertTrue(Storage.needsWrite(stored, noGcm, HOUR));
+    }
+
+    @Test
+    public void missingTimestamps() {
+        DeviceInfo none = device("r1", 0);
+        none.setRegistrationTimestamp(null);
+        DeviceInfo alsoNone = device("r1", 0);
+        alsoNone.setRegistrationTimestamp(null);
+        assertFalse(Storage.needsWrite(none, alsoNone, HOUR));
+        assertTrue(Storage.needsWrite(none, device("r1", 0), HOUR));
+        assertTrue(Storage.needsWrite(device("r1", 0), none, HOUR));
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.chrometophone.server;
+
+import java.util.Date;
+
+/**
+ * Devices for the tests.
+ */
+final class TestDevices {
+    static final String USER = "a@example.com";
+
+    private TestDevices() {
+    }
+
+    /**
+     * AC2DM device with the key 'user#name', registered at time 1000.
+     */
+    static DeviceInfo device(String user, String name, String regId) {
+        DeviceInfo device = new DeviceInfo(EntityMapper.deviceKey(user + "#" + name), regId);
+        device.setName(name);
+        device.setType(DeviceInfo.TYPE_AC2DM);
+        device.setRegistrationTimestamp(new Date(1000));
+        return device;
+    }
+}